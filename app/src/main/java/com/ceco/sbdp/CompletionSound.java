@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import de.robv.android.xposed.XposedBridge;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Download completion sound. Configured sound is resolved and loaded into a
+ * SoundPool on a background thread once, whenever its URI changes, and played
+ * from memory. Completions within a short window result in a single sound.
+ * Sounds SoundPool can't open fall back to Ringtone, still off the main thread.
+ * System setting aliases, e.g. default notification sound, are watched and the
+ * sound is reloaded whenever the setting behind them changes.
+ */
+class CompletionSound implements Handler.Callback {
+    // completions closer to each other than this play one sound
+    private static final long COALESCE_WINDOW_MS = 1000;
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_PLAY = 2;
+
+    private final Context mContext;
+    private Handler mHandler;
+    // main thread only
+    private String mUri;
+    private long mLastPlayMs;
+    private ContentObserver mAliasObserver;
+    // sound thread only
+    private SoundPool mSoundPool;
+    private int mSoundId;
+    private boolean mLoaded;
+    private boolean mPlayPending;
+    private Ringtone mFallback;
+
+    CompletionSound(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Sets sound to be played; null releases the current one.
+     */
+    void setUri(String uri) {
+        if (uri == null ? mUri == null : uri.equals(mUri)) return;
+        mUri = uri;
+        updateAliasObserver(uri);
+        if (uri == null && mHandler == null) return;
+        getHandler().obtainMessage(MSG_LOAD, uri).sendToTarget();
+    }
+
+    void play() {
+        if (mUri == null) return;
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastPlayMs < COALESCE_WINDOW_MS) {
+            if (ModSbdp.DEBUG) ModSbdp.log("CompletionSound: coalesced");
+            return;
+        }
+        mLastPlayMs = now;
+        getHandler().sendEmptyMessage(MSG_PLAY);
+    }
+
+    // Alias is resolved only when loaded, so any change of the setting it stands
+    // for needs a reload; otherwise old sound keeps playing until SystemUI restart
+    private void updateAliasObserver(String uri) {
+        if (mAliasObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mAliasObserver);
+            mAliasObserver = null;
+        }
+        if (uri == null) return;
+        final Uri parsed = Uri.parse(uri);
+        if (!android.provider.Settings.AUTHORITY.equals(parsed.getAuthority())) return;
+
+        mAliasObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (mUri == null) return;
+                if (ModSbdp.DEBUG) ModSbdp.log("CompletionSound: " + mUri + " changed; reloading");
+                getHandler().obtainMessage(MSG_LOAD, mUri).sendToTarget();
+            }
+        };
+        try {
+            mContext.getContentResolver().registerContentObserver(parsed, false, mAliasObserver);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+            mAliasObserver = null;
+        }
+    }
+
+    private Handler getHandler() {
+        if (mHandler == null) {
+            HandlerThread thread = new HandlerThread("SbdpSound",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper(), this);
+        }
+        return mHandler;
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_LOAD:
+                release();
+                if (msg.obj != null) {
+                    load(Uri.parse((String) msg.obj));
+                }
+                return true;
+            case MSG_PLAY:
+                if (mLoaded) {
+                    mSoundPool.play(mSoundId, 1f, 1f, 1, 0, 1f);
+                } else if (mFallback != null) {
+                    mFallback.play();
+                } else if (mSoundPool != null) {
+                    // still decoding
+                    mPlayPending = true;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void load(final Uri uri) {
+        final long startNs = System.nanoTime();
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mContext.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (afd == null) throw new IllegalStateException("No descriptor for " + uri);
+            mSoundPool = createSoundPool();
+            mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+                @Override
+                public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                    if (soundPool != mSoundPool || sampleId != mSoundId) return;
+                    if (ModSbdp.DEBUG) ModSbdp.log("CompletionSound: loaded; status=" + status +
+                            " in " + (System.nanoTime() - startNs) / 1000 + "us");
+                    final boolean playPending = mPlayPending;
+                    if (status == 0) {
+                        mLoaded = true;
+                        if (playPending) {
+                            soundPool.play(mSoundId, 1f, 1f, 1, 0, 1f);
+                        }
+                    } else {
+                        // descriptor opened but couldn't be decoded
+                        useFallback(uri);
+                        if (playPending && mFallback != null) {
+                            mFallback.play();
+                        }
+                    }
+                    mPlayPending = false;
+                }
+            });
+            mSoundId = mSoundPool.load(afd, 1);
+        } catch (Throwable t) {
+            if (ModSbdp.DEBUG) ModSbdp.log("CompletionSound: " + t.getMessage());
+            useFallback(uri);
+        } finally {
+            // SoundPool keeps its own duplicate of the descriptor
+            if (afd != null) try { afd.close(); } catch (Throwable ignored) { }
+        }
+    }
+
+    private void useFallback(Uri uri) {
+        if (ModSbdp.DEBUG) ModSbdp.log("CompletionSound: using ringtone for " + uri);
+        release();
+        try {
+            mFallback = RingtoneManager.getRingtone(mContext, uri);
+            if (mFallback != null) {
+                mFallback.setStreamType(AudioManager.STREAM_NOTIFICATION);
+            }
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+    }
+
+    private void release() {
+        if (mSoundPool != null) {
+            mSoundPool.release();
+            mSoundPool = null;
+        }
+        mSoundId = 0;
+        mLoaded = false;
+        mPlayPending = false;
+        mFallback = null;
+    }
+
+    @SuppressWarnings("deprecation")
+    @TargetApi(21)
+    private static SoundPool createSoundPool() {
+        // single stream, so even sounds not coalesced never overlap
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new SoundPool.Builder()
+                    .setMaxStreams(1)
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_NOTIFICATION_EVENT)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                            .build())
+                    .build();
+        } else {
+            return new SoundPool(1, AudioManager.STREAM_NOTIFICATION, 0);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Keeps idle deadlines of all tracked downloads in an indexed min-heap together
+ * with the time of next index rotation, and keeps at most one callback posted
+ * for whichever comes first. Nothing is posted when there's nothing to wait for.
+ * Deadlines are based on elapsedRealtime so wall clock changes don't affect them.
+ * Main thread only.
+ */
+class DeadlineScheduler implements Runnable {
+    static final long NONE = Long.MAX_VALUE;
+
+    interface Callback {
+        void onIdle(ProgressInfo pi);
+        void onRotate();
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Callback mCallback;
+    private ProgressInfo[] mHeap;
+    private int mSize;
+    private long mRotationDeadline = NONE;
+    private long mPostedDeadline = NONE;
+
+    DeadlineScheduler(Callback callback, int initialCapacity) {
+        mCallback = callback;
+        mHeap = new ProgressInfo[Math.max(initialCapacity, 4)];
+    }
+
+    /**
+     * Adds download or repositions it after its idle deadline has changed.
+     */
+    void schedule(ProgressInfo pi) {
+        if (pi.heapIndex < 0) {
+            if (mSize == mHeap.length) {
+                ProgressInfo[] heap = new ProgressInfo[mSize * 2];
+                System.arraycopy(mHeap, 0, heap, 0, mSize);
+                mHeap = heap;
+            }
+            pi.heapIndex = mSize;
+            mHeap[mSize++] = pi;
+            siftUp(pi.heapIndex);
+        } else {
+            siftDown(siftUp(pi.heapIndex));
+        }
+        reschedule();
+    }
+
+    void unschedule(ProgressInfo pi) {
+        final int index = pi.heapIndex;
+        if (index < 0) return;
+        removeAt(index);
+        reschedule();
+    }
+
+    void setRotationDeadline(long deadline) {
+        mRotationDeadline = deadline;
+        reschedule();
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mHeap[i].heapIndex = -1;
+            mHeap[i] = null;
+        }
+        mSize = 0;
+        mRotationDeadline = NONE;
+        reschedule();
+    }
+
+    @Override
+    public void run() {
+        mPostedDeadline = NONE;
+        final long now = SystemClock.elapsedRealtime();
+        while (mSize > 0 && mHeap[0].getIdleDeadline() <= now) {
+            ProgressInfo pi = mHeap[0];
+            removeAt(0);
+            mCallback.onIdle(pi);
+        }
+        if (mRotationDeadline <= now) {
+            mRotationDeadline = NONE;
+            mCallback.onRotate();
+        }
+        reschedule();
+    }
+
+    // Deadlines of active downloads only move forward as progress arrives, so a
+    // callback posted earlier than needed is left in place and simply reschedules
+    // when it fires. It's reposted only when something needs to happen sooner.
+    private void reschedule() {
+        long deadline = mRotationDeadline;
+        if (mSize > 0) {
+            deadline = Math.min(deadline, mHeap[0].getIdleDeadline());
+        }
+        if (deadline == NONE) {
+            if (mPostedDeadline != NONE) {
+                mHandler.removeCallbacks(this);
+                mPostedDeadline = NONE;
+            }
+        } else if (deadline < mPostedDeadline) {
+            mHandler.removeCallbacks(this);
+            mHandler.postDelayed(this, Math.max(0, deadline - SystemClock.elapsedRealtime()));
+            mPostedDeadline = deadline;
+            if (ModSbdp.DEBUG) ModSbdp.log("DeadlineScheduler: next wakeup in " +
+                    (deadline - SystemClock.elapsedRealtime()) + "ms");
+        }
+    }
+
+    private void removeAt(int index) {
+        ProgressInfo removed = mHeap[index];
+        removed.heapIndex = -1;
+        mSize--;
+        if (index != mSize) {
+            ProgressInfo last = mHeap[mSize];
+            mHeap[index] = last;
+            last.heapIndex = index;
+            siftDown(siftUp(index));
+        }
+        mHeap[mSize] = null;
+    }
+
+    private int siftUp(int index) {
+        ProgressInfo pi = mHeap[index];
+        final long deadline = pi.getIdleDeadline();
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (mHeap[parent].getIdleDeadline() <= deadline) break;
+            mHeap[index] = mHeap[parent];
+            mHeap[index].heapIndex = index;
+            index = parent;
+        }
+        mHeap[index] = pi;
+        pi.heapIndex = index;
+        return index;
+    }
+
+    private void siftDown(int index) {
+        ProgressInfo pi = mHeap[index];
+        final long deadline = pi.getIdleDeadline();
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= mSize) break;
+            if (child + 1 < mSize &&
+                    mHeap[child + 1].getIdleDeadline() < mHeap[child].getIdleDeadline()) {
+                child++;
+            }
+            if (mHeap[child].getIdleDeadline() >= deadline) break;
+            mHeap[index] = mHeap[child];
+            mHeap[index].heapIndex = index;
+            index = child;
+        }
+        mHeap[index] = pi;
+        pi.heapIndex = index;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+import android.annotation.SuppressLint;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+/**
+ * Declarative table of SystemUI method hooks. Each spec applies to a range of SDK
+ * versions and resolves to exact method overloads. Resolved signatures are cached
+ * in SystemUI's data dir keyed by SystemUI APK fingerprint, so subsequent boots
+ * skip probing of declared methods.
+ */
+final class HookTable {
+    private static final String CACHE_FILE_NAME = "sbdp_hooks.cache";
+    private static final String CACHE_KEY_FINGERPRINT = "fingerprint";
+    private static final int CACHE_VERSION = 1;
+    // cached for specs that resolve to nothing, so they aren't probed again
+    private static final String SIGNATURE_NONE = "-";
+
+    static final int ANY_SDK = Integer.MAX_VALUE;
+
+    // method is looked up by exact parameter types
+    static final int MATCH_EXACT = 0;
+    // all overloads having StatusBarNotification parameter
+    static final int MATCH_SBN_PARAM = 1;
+    // all overloads
+    static final int MATCH_ALL = 2;
+
+    static final class Spec {
+        final String name;
+        final int minSdk;
+        final int maxSdk;
+        final String className;
+        final String methodName;
+        final int match;
+        final String[] paramTypes;
+        final XC_MethodHook callback;
+
+        Spec(String name, int minSdk, int maxSdk, String className, String methodName,
+                int match, String[] paramTypes, XC_MethodHook callback) {
+            this.name = name;
+            this.minSdk = minSdk;
+            this.maxSdk = maxSdk;
+            this.className = className;
+            this.methodName = methodName;
+            this.match = match;
+            this.paramTypes = paramTypes;
+            this.callback = callback;
+        }
+
+        boolean appliesTo(int sdk) {
+            return (sdk >= minSdk && sdk <= maxSdk);
+        }
+    }
+
+    private final ClassLoader mClassLoader;
+    private final Class<?> mSbnClass;
+    private final File mCacheFile;
+    private final String mFingerprint;
+    private boolean mFromCache;
+
+    @SuppressLint("NewApi")
+    HookTable(ApplicationInfo appInfo, ClassLoader classLoader, Class<?> sbnClass) {
+        mClassLoader = classLoader;
+        mSbnClass = sbnClass;
+        String dataDir = (Build.VERSION.SDK_INT >= 24 && appInfo.deviceProtectedDataDir != null) ?
+                appInfo.deviceProtectedDataDir : appInfo.dataDir;
+        mCacheFile = new File(dataDir + "/cache/" + CACHE_FILE_NAME);
+        File apk = new File(appInfo.sourceDir);
+        mFingerprint = CACHE_VERSION + "|" + BuildConfig.VERSION_CODE + "|" +
+                Build.FINGERPRINT + "|" + appInfo.sourceDir + "|" +
+                apk.lastModified() + "|" + apk.length();
+    }
+
+    boolean isFromCache() {
+        return mFromCache;
+    }
+
+    void install(Spec[] specs) {
+        Properties cache = loadCache();
+        mFromCache = (cache != null);
+        Properties resolved = new Properties();
+        resolved.setProperty(CACHE_KEY_FINGERPRINT, mFingerprint);
+
+        for (Spec spec : specs) {
+            if (!spec.appliesTo(Build.VERSION.SDK_INT)) continue;
+
+            if (cache != null && SIGNATURE_NONE.equals(cache.getProperty(spec.name))) {
+                if (ModSbdp.DEBUG) ModSbdp.log("HookTable: no method for " + spec.name + " (cached)");
+                resolved.setProperty(spec.name, SIGNATURE_NONE);
+                continue;
+            }
+
+            try {
+                List<Method> methods = null;
+                if (cache != null) {
+                    methods = fromSignatures(cache.getProperty(spec.name));
+                    if (methods == null) {
+                        if (ModSbdp.DEBUG) ModSbdp.log("HookTable: cache miss for " + spec.name);
+                        mFromCache = false;
+                    }
+                }
+                if (methods == null) {
+                    try {
+                        methods = probe(spec);
+                    } catch (Throwable t) {
+                        ModSbdp.log("HookTable: error probing " + spec.name + ": " + t.getMessage());
+                        methods = new ArrayList<>();
+                    }
+                }
+                if (methods.isEmpty()) {
+                    ModSbdp.log("HookTable: no method found for " + spec.name);
+                    resolved.setProperty(spec.name, SIGNATURE_NONE);
+                    continue;
+                }
+                resolved.setProperty(spec.name, toSignatures(methods));
+                for (Method m : methods) {
+                    XposedBridge.hookMethod(m, spec.callback);
+                    if (ModSbdp.DEBUG) ModSbdp.log("HookTable: hooked " + m);
+                }
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+        }
+
+        if (!mFromCache) {
+            saveCache(resolved);
+        }
+    }
+
+    private List<Method> probe(Spec spec) throws ClassNotFoundException {
+        Class<?> clazz = XposedHelpers.findClass(spec.className, mClassLoader);
+        List<Method> methods = new ArrayList<>();
+        if (spec.match == MATCH_EXACT) {
+            Class<?>[] paramTypes = new Class<?>[spec.paramTypes.length];
+            for (int i = 0; i < paramTypes.length; i++) {
+                paramTypes[i] = typeForName(spec.paramTypes[i]);
+            }
+            methods.add(XposedHelpers.findMethodExact(clazz, spec.methodName, paramTypes));
+            return methods;
+        }
+
+        for (Method m : clazz.getDeclaredMethods()) {
+            if (!m.getName().equals(spec.methodName)) continue;
+            if (spec.match == MATCH_ALL || hasSbnParam(m)) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    private boolean hasSbnParam(Method m) {
+        for (Class<?> type : m.getParameterTypes()) {
+            if (mSbnClass != null && mSbnClass.isAssignableFrom(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // signature format: className#methodName(paramType,paramType)|...
+    private static String toSignatures(List<Method> methods) {
+        StringBuilder sb = new StringBuilder();
+        for (Method m : methods) {
+            if (sb.length() > 0) sb.append('|');
+            sb.append(m.getDeclaringClass().getName()).append('#')
+                .append(m.getName()).append('(');
+            Class<?>[] params = m.getParameterTypes();
+            for (int i = 0; i < params.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(params[i].getName());
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    private List<Method> fromSignatures(String signatures) {
+        if (signatures == null || signatures.isEmpty()) return null;
+
+        List<Method> methods = new ArrayList<>();
+        try {
+            for (String signature : signatures.split("\\|")) {
+                int hash = signature.indexOf('#');
+                int paren = signature.indexOf('(');
+                Class<?> clazz = XposedHelpers.findClass(signature.substring(0, hash), mClassLoader);
+                String params = signature.substring(paren + 1, signature.length() - 1);
+                Class<?>[] paramTypes;
+                if (params.isEmpty()) {
+                    paramTypes = new Class<?>[0];
+                } else {
+                    String[] names = params.split(",");
+                    paramTypes = new Class<?>[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        paramTypes[i] = typeForName(names[i]);
+                    }
+                }
+                methods.add(XposedHelpers.findMethodExact(clazz,
+                        signature.substring(hash + 1, paren), paramTypes));
+            }
+        } catch (Throwable t) {
+            if (ModSbdp.DEBUG) ModSbdp.log("HookTable: invalid cached signature: " + t.getMessage());
+            return null;
+        }
+        return methods;
+    }
+
+    private Class<?> typeForName(String name) throws ClassNotFoundException {
+        switch (name) {
+            case "int": return int.class;
+            case "long": return long.class;
+            case "boolean": return boolean.class;
+            case "float": return float.class;
+            case "double": return double.class;
+            case "byte": return byte.class;
+            case "char": return char.class;
+            case "short": return short.class;
+            default: return Class.forName(name, false, mClassLoader);
+        }
+    }
+
+    private Properties loadCache() {
+        if (!mCacheFile.exists()) return null;
+
+        Properties cache = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mCacheFile);
+            cache.load(in);
+        } catch (Throwable t) {
+            ModSbdp.log("HookTable: error reading cache: " + t.getMessage());
+            return null;
+        } finally {
+            if (in != null) try { in.close(); } catch (Throwable ignored) { }
+        }
+        if (!mFingerprint.equals(cache.getProperty(CACHE_KEY_FINGERPRINT))) {
+            if (ModSbdp.DEBUG) ModSbdp.log("HookTable: SystemUI fingerprint changed; cache invalidated");
+            return null;
+        }
+        return cache;
+    }
+
+    private void saveCache(Properties resolved) {
+        OutputStream out = null;
+        try {
+            File dir = mCacheFile.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                ModSbdp.log("HookTable: unable to create " + dir);
+                return;
+            }
+            out = new FileOutputStream(mCacheFile);
+            resolved.store(out, null);
+        } catch (Throwable t) {
+            ModSbdp.log("HookTable: error writing cache: " + t.getMessage());
+        } finally {
+            if (out != null) try { out.close(); } catch (Throwable ignored) { }
+        }
+    }
+}
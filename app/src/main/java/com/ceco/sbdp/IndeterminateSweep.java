@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.ObjectAnimator;
+import android.animation.ValueAnimator;
+import android.os.Build;
+import android.view.View;
+import android.view.animation.LinearInterpolator;
+
+/**
+ * Sweeps a short segment of the bar across the status bar for progress of unknown length.
+ * On Lollipop+ sweep runs as RenderNodeAnimator on RenderThread over a hardware layer,
+ * so once started the UI thread gets involved only once per sweep cycle.
+ * Older versions fall back to a repeating ObjectAnimator.
+ */
+class IndeterminateSweep extends AnimatorListenerAdapter {
+    static final float SEGMENT_SCALE = 0.25f;
+    private static final int SWEEP_DURATION = 1500; // ms
+    private static final int RT_PROPERTY_TRANSLATION_X = 0;
+
+    private static Constructor<?> sRtAnimatorCtor;
+    private static Method sRtSetTarget;
+    private static Method sRtSetStartValue;
+    private static boolean sRtResolved;
+
+    private final View mView;
+    private final LinearInterpolator mInterpolator = new LinearInterpolator();
+    private Animator mAnimator;
+    private boolean mRunning;
+    private boolean mPaused;
+
+    IndeterminateSweep(View view) {
+        mView = view;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mView.setScaleX(SEGMENT_SCALE);
+        mView.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+        startCycle();
+    }
+
+    void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        cancelCycle();
+        mView.setTranslationX(0f);
+        mView.setLayerType(View.LAYER_TYPE_NONE, null);
+    }
+
+    void setPaused(boolean paused) {
+        if (mPaused == paused) return;
+        mPaused = paused;
+        if (ModSbdp.DEBUG) ModSbdp.log("IndeterminateSweep: paused=" + paused);
+        if (paused) {
+            cancelCycle();
+        } else {
+            startCycle();
+        }
+    }
+
+    void onSizeChanged() {
+        cancelCycle();
+        startCycle();
+    }
+
+    private void startCycle() {
+        final int width = mView.getWidth();
+        if (!mRunning || mPaused || width == 0) return;
+
+        final float from = -width * SEGMENT_SCALE;
+        final float to = width;
+        mAnimator = createRenderThreadAnimator(from, to);
+        if (mAnimator == null) {
+            ObjectAnimator animator = ObjectAnimator.ofFloat(mView, "translationX", from, to);
+            animator.setRepeatCount(ValueAnimator.INFINITE);
+            mAnimator = animator;
+        }
+        mAnimator.setDuration(SWEEP_DURATION);
+        mAnimator.setInterpolator(mInterpolator);
+        mAnimator.addListener(this);
+        mAnimator.start();
+    }
+
+    private void cancelCycle() {
+        if (mAnimator != null) {
+            Animator animator = mAnimator;
+            mAnimator = null;
+            animator.removeListener(this);
+            animator.cancel();
+        }
+    }
+
+    @Override
+    public void onAnimationEnd(Animator animation) {
+        // RenderThread animators can't repeat; kick off next cycle
+        if (animation == mAnimator) {
+            mAnimator = null;
+            startCycle();
+        }
+    }
+
+    private Animator createRenderThreadAnimator(float from, float to) {
+        if (Build.VERSION.SDK_INT < 21 || !mView.isHardwareAccelerated()) return null;
+
+        try {
+            if (!sRtResolved) {
+                sRtResolved = true;
+                Class<?> clazz = Class.forName("android.view.RenderNodeAnimator");
+                sRtAnimatorCtor = clazz.getConstructor(int.class, float.class);
+                sRtSetTarget = clazz.getMethod("setTarget", View.class);
+                sRtSetStartValue = clazz.getMethod("setStartValue", float.class);
+            }
+            if (sRtAnimatorCtor == null) return null;
+
+            Animator animator = (Animator) sRtAnimatorCtor.newInstance(RT_PROPERTY_TRANSLATION_X, to);
+            sRtSetStartValue.invoke(animator, from);
+            sRtSetTarget.invoke(animator, mView);
+            return animator;
+        } catch (Throwable t) {
+            ModSbdp.log("IndeterminateSweep: RenderThread animation not available: " + t.getMessage());
+            sRtAnimatorCtor = null;
+            return null;
+        }
+    }
+}
@@ -15,9 +15,13 @@
 package com.ceco.sbdp;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import android.content.res.ColorStateList;
 import android.os.Build;
-import android.service.notification.NotificationListenerService;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextClock;
@@ -44,12 +48,21 @@ public class ModSbdp implements IXposedHookZygoteInit, IXposedHookLoadPackage {
     private static final String CLASS_BASE_STATUSBAR = Build.VERSION.SDK_INT >= 26 ?
             "com.android.systemui.statusbar.phone.StatusBar" :
             "com.android.systemui.statusbar.BaseStatusBar";
+    private static final String CLASS_STATUSBAR_NOTIFICATION = Build.VERSION.SDK_INT >= 18 ?
+            "android.service.notification.StatusBarNotification" :
+            "com.android.internal.statusbar.StatusBarNotification";
     private static final String CLASS_NOTIF_DATA_ENTRY = "com.android.systemui.statusbar.NotificationData$Entry";
+    private static final String CLASS_KEYGUARD_STATUSBAR_VIEW =
+            "com.android.systemui.statusbar.phone.KeyguardStatusBarView";
     private static final String CLASS_CLOCK = "com.android.systemui.statusbar.policy.Clock";
+    private static final String CLASS_RANKING_MAP =
+            "android.service.notification.NotificationListenerService$RankingMap";
     private static final String CLASS_NOTIF_ENTRY_MANAGER = Build.VERSION.SDK_INT >= 29 ?
             "com.android.systemui.statusbar.notification.NotificationEntryManager" :
             "com.android.systemui.statusbar.NotificationEntryManager";
 
+    private static final String KEY_PROGRESS_VIEW_STUB = "sbdpProgressViewStub";
+
     static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
     }
@@ -67,7 +80,17 @@ public class ModSbdp implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         }
     }
 
-    private StatusbarDownloadProgressView mDownloadProgressView;
+    static File getSettingsFile() {
+        final String dataDir = Utils.USE_DEVICE_PROTECTED_STORAGE ?
+                "/data/user_de/0/" + PACKAGE_NAME_MODULE : "/data/data/" + PACKAGE_NAME_MODULE;
+        return new File(dataDir, SettingsStore.FILE_NAME);
+    }
+
+    private ProgressModel mProgressModel;
+    private NotificationIngestor mIngestor;
+    private SbnArgLocator mSbnArgLocator;
+    // child indexes leading from each status bar view class to clock, validated on reuse
+    private final Map<Class<?>, int[]> mClockPaths = new HashMap<>();
 
     @Override
     public void handleLoadPackage(LoadPackageParam lpparam) {
@@ -87,119 +110,198 @@ public class ModSbdp implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         if (lpparam.packageName.equals(PACKAGE_NAME_SYSTEMUI)) {
             try {
                 if (DEBUG) log("Creating status bar hooks");
+                final long hookStartNs = System.nanoTime();
                 Class<?> classPhoneStatusbarView = XposedHelpers.findClass(CLASS_PHONE_STATUSBAR_VIEW,
                         lpparam.classLoader);
-                Class<?> classPhoneStatusbar = XposedHelpers.findClass(CLASS_PHONE_STATUSBAR,
-                        lpparam.classLoader);
-                Class<?> classBaseStatusbar = XposedHelpers.findClass(CLASS_BASE_STATUSBAR,
-                        lpparam.classLoader);
 
-                Class<?> classNotifEntryManager = null;
-                if (Build.VERSION.SDK_INT >= 28) {
-                    classNotifEntryManager = XposedHelpers.findClass(CLASS_NOTIF_ENTRY_MANAGER,
+                Class<?> classSbNotif = null;
+                try {
+                    classSbNotif = XposedHelpers.findClass(CLASS_STATUSBAR_NOTIFICATION,
                             lpparam.classLoader);
+                    StatusBarNotificationAccessor.forClass(classSbNotif);
+                } catch (Throwable t) {
+                    log("Error resolving StatusBarNotification fields: " + t.getMessage());
                 }
+                mSbnArgLocator = new SbnArgLocator(classSbNotif);
 
-                XposedBridge.hookAllConstructors(classPhoneStatusbarView, new XC_MethodHook() {
+                // every status bar instance gets its own bar fed from one shared model
+                XC_MethodHook hostConstructorHook = new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) {
                         ViewGroup sbVg = (ViewGroup) param.thisObject;
-                        mDownloadProgressView = new StatusbarDownloadProgressView(sbVg.getContext());
-                        sbVg.addView(mDownloadProgressView);
-                        if (DEBUG) log("Download progress view injected");
+                        if (mProgressModel == null) {
+                            mIngestor = new NotificationIngestor(sbVg.getContext());
+                            mProgressModel = new ProgressModel(sbVg.getContext(), mIngestor);
+                            mIngestor.setListener(mProgressModel);
+                        }
+                        // actual view is built on first progress or demo request
+                        XposedHelpers.setAdditionalInstanceField(sbVg, KEY_PROGRESS_VIEW_STUB,
+                                new ProgressViewStub(sbVg, mProgressModel));
+                        if (DEBUG) log("Download progress view stub injected into " +
+                                sbVg.getClass().getName());
                     }
-                });
+                };
+                XC_MethodHook finishInflateHook = new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        ProgressViewStub stub = (ProgressViewStub) XposedHelpers
+                                .getAdditionalInstanceField(param.thisObject, KEY_PROGRESS_VIEW_STUB);
+                        if (stub != null) {
+                            stub.setClock(findClock((ViewGroup) param.thisObject));
+                        }
+                    }
+                };
 
+                XposedBridge.hookAllConstructors(classPhoneStatusbarView, hostConstructorHook);
                 try {
-                    XposedHelpers.findAndHookMethod(classPhoneStatusbarView, "onFinishInflate", new XC_MethodHook() {
-                        @Override
-                        protected void afterHookedMethod(MethodHookParam param) {
-                            if (mDownloadProgressView != null) {
-                                mDownloadProgressView.setClock(
-                                        findClockIn((ViewGroup) param.thisObject));
-                            }
-                        }
-                    });
+                    XposedHelpers.findAndHookMethod(classPhoneStatusbarView, "onFinishInflate",
+                            finishInflateHook);
                 } catch (Throwable t) {
                     log("Error hooking onFinishInflate: clock based coloring won't work");
                 }
+                if (Build.VERSION.SDK_INT >= 21) {
+                    try {
+                        Class<?> classKeyguardStatusbarView = XposedHelpers.findClass(
+                                CLASS_KEYGUARD_STATUSBAR_VIEW, lpparam.classLoader);
+                        XposedBridge.hookAllConstructors(classKeyguardStatusbarView,
+                                hostConstructorHook);
+                        // keyguard bar usually has no clock; its bar keeps static color then
+                        try {
+                            XposedHelpers.findAndHookMethod(classKeyguardStatusbarView,
+                                    "onFinishInflate", finishInflateHook);
+                        } catch (Throwable t) {
+                            log("Error hooking keyguard onFinishInflate: " + t.getMessage());
+                        }
+                    } catch (Throwable t) {
+                        log("Error hooking keyguard status bar: " + t.getMessage());
+                    }
+                }
+
+                XC_MethodHook clockColorHook = new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        ProgressViewStub.dispatchTextColorChanged((TextView) param.thisObject);
+                    }
+                };
+                // Oreo and newer tint clock as DarkIconDispatcher receiver, so only
+                // clock itself is hooked there
+                boolean clockTintHooked = false;
+                if (Build.VERSION.SDK_INT >= 26) {
+                    try {
+                        clockTintHooked = !XposedBridge.hookAllMethods(XposedHelpers.findClass(
+                                CLASS_CLOCK, lpparam.classLoader), "onDarkChanged",
+                                clockColorHook).isEmpty();
+                    } catch (Throwable t) {
+                        log("Error hooking Clock.onDarkChanged: " + t.getMessage());
+                    }
+                }
+                // older releases apply status bar tint to clock via plain setTextColor;
+                // int overload doesn't go through ColorStateList one, so both are needed
+                if (!clockTintHooked) {
+                    try {
+                        XposedHelpers.findAndHookMethod(TextView.class, "setTextColor",
+                                int.class, clockColorHook);
+                        XposedHelpers.findAndHookMethod(TextView.class, "setTextColor",
+                                ColorStateList.class, clockColorHook);
+                    } catch (Throwable t) {
+                        log("Error hooking setTextColor: bar won't follow clock color changes");
+                    }
+                }
 
-                // new notification
-                XposedBridge.hookAllMethods(Build.VERSION.SDK_INT >=28 ?
-                                classNotifEntryManager : classPhoneStatusbar,
-                        "addNotification", new XC_MethodHook() {
+                XC_MethodHook addNotificationHook = new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) {
-                        if (mDownloadProgressView != null) {
-                            Object sbNotif = getSbNotificationFromArgs(param.args);
+                        if (mIngestor != null) {
+                            Object sbNotif = mSbnArgLocator.locate(param.method, param.args);
                             if (sbNotif != null) {
-                                mDownloadProgressView.onNotificationAdded(sbNotif);
+                                mIngestor.onNotificationAdded(sbNotif);
                             } else {
                                 log("addNotification: Couldn't find StatusbarNotification in params");
                             }
                         }
                     }
-                });
+                };
 
-                // notification update
-                XposedBridge.hookAllMethods(Build.VERSION.SDK_INT >= 28 ?
-                                classNotifEntryManager : classBaseStatusbar,
-                        "updateNotification", new XC_MethodHook() {
+                XC_MethodHook updateNotificationHook = new XC_MethodHook() {
                     @Override
                     protected void afterHookedMethod(MethodHookParam param) {
-                        if (mDownloadProgressView != null) {
-                            Object sbNotif = getSbNotificationFromArgs(param.args);
+                        if (mIngestor != null) {
+                            Object sbNotif = mSbnArgLocator.locate(param.method, param.args);
                             if (sbNotif != null) {
-                                mDownloadProgressView.onNotificationUpdated(sbNotif);
+                                mIngestor.onNotificationUpdated(sbNotif);
                             } else {
                                 log("updateNotification: Couldn't find StatusbarNotification in params");
                             }
                         }
                     }
-                });
+                };
 
-                // notification removal
-                if (Build.VERSION.SDK_INT >= 28) {
-                    XC_MethodHook removeNotificationHook =
-                        new XC_MethodHook() {
-                            @Override
-                            protected void beforeHookedMethod(MethodHookParam param) {
-                                if (mDownloadProgressView != null) {
-                                    Object notifData = XposedHelpers.getObjectField(param.thisObject, "mNotificationData");
-                                    Object entry = XposedHelpers.callMethod(notifData, "get", param.args[0]);
-                                    if (entry != null) {
-                                        mDownloadProgressView.onNotificationRemoved(
-                                                XposedHelpers.getObjectField(entry, "notification"));
-                                    }
-                                }
+                XC_MethodHook removeNotificationHook = new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) {
+                        if (mIngestor != null) {
+                            Object notifData = XposedHelpers.getObjectField(param.thisObject, "mNotificationData");
+                            Object entry = XposedHelpers.callMethod(notifData, "get", param.args[0]);
+                            if (entry != null) {
+                                mIngestor.onNotificationRemoved(
+                                        XposedHelpers.getObjectField(entry, "notification"));
                             }
-                    };
-                    if (Build.VERSION.SDK_INT >= 29) {
-                        XposedHelpers.findAndHookMethod(classNotifEntryManager, "removeNotification",
-                                String.class, NotificationListenerService.RankingMap.class, int.class, removeNotificationHook);
-                    } else {
-                        XposedHelpers.findAndHookMethod(classNotifEntryManager, "removeNotification",
-                                String.class, NotificationListenerService.RankingMap.class, removeNotificationHook);
+                        }
                     }
-                } else {
-                    XposedBridge.hookAllMethods(classBaseStatusbar, "removeNotificationViews", new XC_MethodHook() {
-                        @Override
-                        protected void afterHookedMethod(MethodHookParam param) {
-                            if (mDownloadProgressView != null) {
-                                try {
-                                    Object result = param.getResult();
-                                    if (result != null) {
-                                        Object statusBarNotif = CLASS_NOTIF_DATA_ENTRY.equals(result.getClass().getName()) ?
-                                                XposedHelpers.getObjectField(result, "notification") : result;
-                                        mDownloadProgressView.onNotificationRemoved(statusBarNotif);
-                                    }
-                                } catch (Throwable t) {
-                                    XposedBridge.log(t);
+                };
+
+                XC_MethodHook removeNotificationViewsHook = new XC_MethodHook() {
+                    @Override
+                    protected void afterHookedMethod(MethodHookParam param) {
+                        if (mIngestor != null) {
+                            try {
+                                Object result = param.getResult();
+                                if (result != null) {
+                                    Object statusBarNotif = CLASS_NOTIF_DATA_ENTRY.equals(result.getClass().getName()) ?
+                                            XposedHelpers.getObjectField(result, "notification") : result;
+                                    mIngestor.onNotificationRemoved(statusBarNotif);
                                 }
+                            } catch (Throwable t) {
+                                XposedBridge.log(t);
                             }
                         }
-                    });
-                }
+                    }
+                };
+
+                HookTable.Spec[] specs = new HookTable.Spec[] {
+                    // new notification
+                    new HookTable.Spec("addNotification", 28, HookTable.ANY_SDK,
+                            CLASS_NOTIF_ENTRY_MANAGER, "addNotification",
+                            HookTable.MATCH_SBN_PARAM, null, addNotificationHook),
+                    new HookTable.Spec("addNotification", 0, 27,
+                            CLASS_PHONE_STATUSBAR, "addNotification",
+                            HookTable.MATCH_SBN_PARAM, null, addNotificationHook),
+                    // notification update
+                    new HookTable.Spec("updateNotification", 28, HookTable.ANY_SDK,
+                            CLASS_NOTIF_ENTRY_MANAGER, "updateNotification",
+                            HookTable.MATCH_SBN_PARAM, null, updateNotificationHook),
+                    new HookTable.Spec("updateNotification", 0, 27,
+                            CLASS_BASE_STATUSBAR, "updateNotification",
+                            HookTable.MATCH_SBN_PARAM, null, updateNotificationHook),
+                    // notification removal
+                    new HookTable.Spec("removeNotification", 29, HookTable.ANY_SDK,
+                            CLASS_NOTIF_ENTRY_MANAGER, "removeNotification", HookTable.MATCH_EXACT,
+                            new String[] { String.class.getName(), CLASS_RANKING_MAP, "int" },
+                            removeNotificationHook),
+                    new HookTable.Spec("removeNotification", 28, 28,
+                            CLASS_NOTIF_ENTRY_MANAGER, "removeNotification", HookTable.MATCH_EXACT,
+                            new String[] { String.class.getName(), CLASS_RANKING_MAP },
+                            removeNotificationHook),
+                    new HookTable.Spec("removeNotificationViews", 0, 27,
+                            CLASS_BASE_STATUSBAR, "removeNotificationViews",
+                            HookTable.MATCH_ALL, null, removeNotificationViewsHook)
+                };
+                HookTable hookTable = new HookTable(lpparam.appInfo, lpparam.classLoader, classSbNotif);
+                hookTable.install(specs);
+
+                // one line per SystemUI start, kept in release builds on purpose
+                log("Hooks installed in " + (System.nanoTime() - hookStartNs) / 1000 + "us; " +
+                        (hookTable.isFromCache() ? "using cached signatures" : "signatures probed"));
             } catch (Throwable t) {
                 XposedBridge.log(t);
             }
@@ -207,37 +309,54 @@ public class ModSbdp implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         }
     }
 
-    private Object getSbNotificationFromArgs(Object[] args) {
-        for (Object o : args) {
-            if (hasRequiredFields(o))
-                return o;
+    private TextView findClock(ViewGroup root) {
+        int[] clockPath = mClockPaths.get(root.getClass());
+        if (clockPath != null) {
+            View view = root;
+            for (int i = 0; i < clockPath.length && view != null; i++) {
+                view = (view instanceof ViewGroup && clockPath[i] < ((ViewGroup) view).getChildCount()) ?
+                        ((ViewGroup) view).getChildAt(clockPath[i]) : null;
+            }
+            if (isClock(view)) {
+                if (DEBUG) log("findClock: clock found via cached path");
+                return (TextView) view;
+            }
+            if (DEBUG) log("findClock: cached path no longer valid");
+            mClockPaths.remove(root.getClass());
+        }
+
+        List<Integer> path = new ArrayList<>();
+        TextView clock = findClockIn(root, path);
+        if (clock != null) {
+            clockPath = new int[path.size()];
+            for (int i = 0; i < clockPath.length; i++) {
+                clockPath[i] = path.get(i);
+            }
+            mClockPaths.put(root.getClass(), clockPath);
         }
-        return null;
+        return clock;
     }
 
-    private boolean hasRequiredFields(Object o) {
-        try {
-            XposedHelpers.getObjectField(o, "notification");
-            XposedHelpers.getObjectField(o, "pkg");
-            return true;
-        } catch (Throwable t) {
-            return false;
-        }
+    private static boolean isClock(View view) {
+        return view != null && (view.getClass().getName().equals(CLASS_CLOCK) ||
+                (Build.VERSION.SDK_INT >= 17 && view instanceof TextClock));
     }
 
-    private TextView findClockIn(ViewGroup vg) {
+    private TextView findClockIn(ViewGroup vg, List<Integer> path) {
         if (DEBUG) log("findClockIn: " + vg.getClass().getName());
         TextView clock = null;
         int childCount = vg.getChildCount();
         for (int i = 0; i < childCount; i++) {
             View childView = vg.getChildAt(i);
+            path.add(i);
             if (childView instanceof ViewGroup) {
-                clock =  findClockIn((ViewGroup) childView);
-            } else if (childView.getClass().getName().equals(CLASS_CLOCK) ||
-                    (Build.VERSION.SDK_INT >= 17 && childView instanceof TextClock)) {
+                clock =  findClockIn((ViewGroup) childView, path);
+            } else if (isClock(childView)) {
                 clock = (TextView) childView;
             }
-            if (clock != null) {
+            if (clock == null) {
+                path.remove(path.size() - 1);
+            } else {
                 if (DEBUG) log("findClockIn: clock found in " + vg.getClass().getName() + " as " +
                         clock.getClass().getName());
                 break;
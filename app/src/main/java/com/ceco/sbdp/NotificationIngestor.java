@@ -0,0 +1,724 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.robv.android.xposed.XposedBridge;
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+import android.widget.RemoteViews;
+
+/**
+ * Takes notification events from SystemUI hooks and moves progress extraction
+ * off the main thread. SystemUI keeps using the Notification, and neither its
+ * extras nor its RemoteViews are thread safe, so the hook thread copies only
+ * cheap inputs: progress extras and a snapshot of RemoteViews action list.
+ * Keying, rate limiting, RemoteViews progress extraction and no-op filtering run
+ * on a background thread and only the final (key, progress, max) result is
+ * posted back to the main thread.
+ */
+class NotificationIngestor {
+    static final String PACKAGE_DOWNLOADS = "com.android.providers.downloads";
+    static final List<String> SUPPORTED_PACKAGES = new ArrayList<>(Arrays.asList(
+            PACKAGE_DOWNLOADS,
+            "com.android.bluetooth",
+            "com.mediatek.bluetooth",
+            "com.android.chrome",
+            "org.mozilla.firefox",
+            "org.mozilla.firefox_beta",
+            "org.mozilla.fennec_aurora",
+            "org.mozilla.fennec"
+    ));
+
+    private static final String EXTRA_PROGRESS = "android.progress";
+    private static final String EXTRA_PROGRESS_MAX = "android.progressMax";
+    private static final String EXTRA_PROGRESS_INDETERMINATE = "android.progressIndeterminate";
+
+    private static final int MSG_NOTIF_ADDED = 1;
+    private static final int MSG_NOTIF_UPDATED = 2;
+    private static final int MSG_NOTIF_REMOVED = 3;
+    private static final int MSG_FLUSH_THROTTLED = 4;
+    private static final int MSG_INVALIDATE = 5;
+
+    private static final int MSG_PROGRESS_ADDED = 1;
+    private static final int MSG_PROGRESS_UPDATED = 2;
+    private static final int MSG_PROGRESS_REMOVED = 3;
+
+    static final long NO_KEY = -1;
+    // key layout: package ordinal | kind bit | notification id or tag ordinal
+    private static final int KEY_PACKAGE_SHIFT = 33;
+    private static final long KEY_KIND_TAG = 1L << 32;
+
+    private static final int FLAG_GROUP_SUMMARY = 0x00000200;
+
+    static final int DEFAULT_RATE_LIMIT = 10; // updates per second
+
+    // Keys tracked for no-op filtering and rate limiting. Least recently posted keys
+    // are evicted beyond this; as it's well above the capacity of progress registry,
+    // whose entries are always among the most recently posted ones, an evicted key is
+    // never still shown. Its next event is simply posted again.
+    private static final int MAX_SOURCE_STATES = 4 * ProgressModel.MAX_TRACKED_PROGRESS;
+    // max of invalidated state; never matches real one so next event is always posted
+    private static final int INVALID_MAX = Integer.MIN_VALUE;
+
+    interface Listener {
+        void onProgressAdded(long key, int progress, int max);
+        void onProgressUpdated(long key, int progress, int max);
+        void onProgressRemoved(long key);
+    }
+
+    // pooled like ProgressEvent; filled on hook thread, recycled by worker
+    private static class RawNotification {
+        String pkg;
+        String tag;
+        int id;
+        boolean groupSummary;
+        // progress found in extras
+        boolean hasProgress;
+        int progress;
+        int max;
+        // otherwise snapshot of RemoteViews actions progress is extracted from, if any
+        List<?> actions;
+        RawNotification next;
+
+        // false for removals and notifications that can't carry supported progress
+        boolean mayHaveProgress() {
+            return (hasProgress || actions != null);
+        }
+    }
+
+    private static class ProgressEvent {
+        long key;
+        int progress;
+        int max;
+        ProgressEvent next;
+    }
+
+    // last state posted for particular key, used to drop no-op events
+    // and to rate limit noisy sources in god mode
+    private static class SourceState {
+        final long key;
+        int progress;
+        int max;
+        boolean groupSummary;
+        long lastPostedMs;
+
+        // token bucket allowing burst of up to one second worth of updates
+        float tokens = -1f;
+        long lastRefillMs;
+        // latest throttled notification, delivered once next token is available
+        RawNotification pending;
+        int pendingWhat;
+        int admittedCount;
+        int throttledCount;
+
+        SourceState(long key) {
+            this.key = key;
+        }
+
+        void refill(long nowMs, int rate) {
+            if (tokens < 0f) {
+                tokens = rate;
+            } else {
+                tokens = Math.min(rate, tokens + (nowMs - lastRefillMs) * rate / 1000f);
+            }
+            lastRefillMs = nowMs;
+        }
+
+        boolean tryAcquire(long nowMs, int rate) {
+            refill(nowMs, rate);
+            if (tokens >= 1f) {
+                tokens -= 1f;
+                return true;
+            }
+            return false;
+        }
+
+        long getTimeToNextToken(int rate) {
+            return (long) Math.ceil((1f - tokens) * 1000f / rate);
+        }
+    }
+
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler;
+    private Listener mListener;
+    private ProgressEvent mEventPool;
+    private RawNotification mRawPool;
+
+    // written from worker thread, read by hooks on main thread
+    private volatile boolean mGodMode;
+    private volatile SourceFilter mSourceFilter = SourceFilter.of(SUPPORTED_PACKAGES);
+    private volatile int mAppliedEventCount;
+    private volatile int mDroppedEventCount;
+    private volatile int mThrottledEventCount;
+
+    // accessed from hook thread only
+    private int mExtractedProgress;
+    private int mExtractedMax;
+
+    // accessed from worker thread only
+    private final RemoteViewsProgressExtractor mRemoteViewsExtractor =
+            new RemoteViewsProgressExtractor();
+    private boolean mEnabled = true;
+    private int mRateLimit = DEFAULT_RATE_LIMIT;
+    private SettingsSnapshot mSettings;
+    // strings are held only as long as source states using them, see releaseKey
+    private final StringInterner mPackages = new StringInterner(32);
+    private final StringInterner mTags = new StringInterner(32);
+    // also guards source states against stats readers; worker holds it while
+    // handling a message, uncontended otherwise
+    private final LongSparseArray<SourceState> mSourceStates = new LongSparseArray<>();
+    private int mProgress;
+    private int mMax;
+    private boolean mGroupSummary;
+
+    private SettingsStore.Listener mSettingsListener = new SettingsStore.Listener() {
+        @Override
+        public void onSettingsChanged(final SettingsSnapshot settings) {
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applySettings(settings);
+                }
+            });
+        }
+    };
+
+    // worker thread only
+    private void applySettings(SettingsSnapshot settings) {
+        final int changed = settings.diff(mSettings);
+        final boolean initial = (mSettings == null);
+        mSettings = settings;
+        if ((changed & SettingsSnapshot.FIELD_MODE) != 0) {
+            final boolean enabled = !"OFF".equals(settings.mode);
+            // Model clears its progress only when turned off. Keys it still holds,
+            // e.g. on TOP <-> BOTTOM switch, must keep their ordinals, otherwise
+            // another source could get the same key.
+            if (!initial && enabled != mEnabled) clearSourceStates();
+            mEnabled = enabled;
+        }
+        if ((changed & SettingsSnapshot.FIELD_GOD_MODE) != 0) {
+            mGodMode = settings.godMode;
+        }
+        if ((changed & SettingsSnapshot.FIELD_SOURCES) != 0) {
+            mSourceFilter = SourceFilter.parse(settings.sources);
+        }
+        if ((changed & SettingsSnapshot.FIELD_RATE_LIMIT) != 0) {
+            mRateLimit = settings.rateLimit;
+        }
+    }
+
+    NotificationIngestor(Context context) {
+        HandlerThread thread = new HandlerThread("SbdpIngestor",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper(), mWorkerCallback);
+        mMainHandler = new Handler(Looper.getMainLooper(), mMainCallback);
+
+        SettingsStore settingsStore = SettingsStore.getInstance(context);
+        mSettingsListener.onSettingsChanged(settingsStore.get());
+        settingsStore.addListener(mSettingsListener);
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+        // new listener knows nothing about progress posted so far
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                clearSourceStates();
+            }
+        });
+    }
+
+    /**
+     * Called when listener dropped the key on its own, e.g. on idle timeout or
+     * eviction, so that its next event isn't filtered out as no-op.
+     */
+    void invalidate(long key) {
+        mWorkerHandler.obtainMessage(MSG_INVALIDATE,
+                (int) (key >>> 32), (int) key).sendToTarget();
+    }
+
+    int getAppliedEventCount() {
+        return mAppliedEventCount;
+    }
+
+    int getDroppedEventCount() {
+        return mDroppedEventCount;
+    }
+
+    int getThrottledEventCount() {
+        return mThrottledEventCount;
+    }
+
+    /**
+     * Returns number of events of a tracked source let through by rate limiter
+     * so far, or 0 if the source isn't tracked.
+     */
+    int getAdmittedEventCount(long key) {
+        synchronized (mSourceStates) {
+            SourceState state = mSourceStates.get(key);
+            return (state != null ? state.admittedCount : 0);
+        }
+    }
+
+    /**
+     * Returns number of events of a tracked source held back by rate limiter
+     * so far, or 0 if the source isn't tracked.
+     */
+    int getThrottledEventCount(long key) {
+        synchronized (mSourceStates) {
+            SourceState state = mSourceStates.get(key);
+            return (state != null ? state.throttledCount : 0);
+        }
+    }
+
+    void onNotificationAdded(Object statusBarNotif) {
+        enqueue(MSG_NOTIF_ADDED, statusBarNotif);
+    }
+
+    void onNotificationUpdated(Object statusBarNotif) {
+        enqueue(MSG_NOTIF_UPDATED, statusBarNotif);
+    }
+
+    void onNotificationRemoved(Object statusBarNotif) {
+        enqueue(MSG_NOTIF_REMOVED, statusBarNotif);
+    }
+
+    private void enqueue(int what, Object statusBarNotif) {
+        if (statusBarNotif == null) return;
+
+        // reject non-sources before any other work; removals always pass so that
+        // bar of a package taken off the list doesn't linger until idle timeout
+        StatusBarNotificationAccessor accessor = StatusBarNotificationAccessor.of(statusBarNotif);
+        final String pkg = accessor.getPackageName(statusBarNotif);
+        if (what != MSG_NOTIF_REMOVED && !mGodMode && !mSourceFilter.contains(pkg)) {
+            return;
+        }
+
+        boolean groupSummary = false;
+        boolean hasProgress = false;
+        List<?> actions = null;
+        if (what != MSG_NOTIF_REMOVED) {
+            Notification n = accessor.getNotification(statusBarNotif);
+            if (n != null) {
+                groupSummary = (n.flags & FLAG_GROUP_SUMMARY) != 0;
+                try {
+                    hasProgress = getProgressExtras(n);
+                    if (!hasProgress) {
+                        actions = copyProgressActions(n);
+                    }
+                } catch (Throwable t) {
+                    XposedBridge.log(t);
+                }
+            }
+        }
+        RawNotification raw = obtainRaw();
+        raw.pkg = pkg;
+        raw.tag = accessor.getTag(statusBarNotif);
+        raw.id = accessor.getId(statusBarNotif);
+        raw.groupSummary = groupSummary;
+        raw.hasProgress = hasProgress;
+        raw.progress = mExtractedProgress;
+        raw.max = mExtractedMax;
+        raw.actions = actions;
+        mWorkerHandler.obtainMessage(what, raw).sendToTarget();
+    }
+
+    private Handler.Callback mWorkerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (!mEnabled) {
+                if (msg.obj instanceof RawNotification) {
+                    recycleRaw((RawNotification) msg.obj);
+                }
+                return true;
+            }
+
+            try {
+                synchronized (mSourceStates) {
+                    if (msg.what == MSG_FLUSH_THROTTLED) {
+                        flushThrottled((SourceState) msg.obj);
+                        return true;
+                    }
+                    if (msg.what == MSG_INVALIDATE) {
+                        final long key = ((long) msg.arg1 << 32) | (msg.arg2 & 0xFFFFFFFFL);
+                        // State itself stays: an update posted before the drop may still
+                        // bring the key back to the listener, so its ordinals can't be
+                        // released and reused yet. It goes away on removal or eviction.
+                        SourceState state = mSourceStates.get(key);
+                        if (state != null) {
+                            state.max = INVALID_MAX;
+                            if (ModSbdp.DEBUG) ModSbdp.log("Invalidated '" +
+                                    ProgressInfo.keyToString(key) + "'");
+                        }
+                        return true;
+                    }
+
+                    handleNotification(msg.what, (RawNotification) msg.obj);
+                }
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+            return true;
+        }
+    };
+
+    private void handleNotification(int what, RawNotification raw) {
+        try {
+            // key is known only for notifications that have a source state
+            final long key = getKey(raw, false);
+            if (key == NO_KEY && (what == MSG_NOTIF_REMOVED || !raw.mayHaveProgress())) {
+                return;
+            }
+            if (key != NO_KEY && what != MSG_NOTIF_REMOVED && isThrottled(what, key, raw)) {
+                // kept as pending by source state
+                raw = null;
+                return;
+            }
+            processNotification(what, key, raw);
+        } finally {
+            if (raw != null) recycleRaw(raw);
+        }
+    }
+
+    private void processNotification(int what, long key, RawNotification raw) {
+        switch (what) {
+            case MSG_NOTIF_ADDED:
+                if (verifyNotification(raw)) {
+                    postProgress(MSG_PROGRESS_ADDED, key, raw);
+                } else if (ModSbdp.DEBUG) {
+                    ModSbdp.log("onNotificationAdded: ignoring unsupported notification");
+                }
+                break;
+            case MSG_NOTIF_UPDATED:
+                if (verifyNotification(raw)) {
+                    postProgress(MSG_PROGRESS_UPDATED, key, raw);
+                } else {
+                    // view drops it in case it was tracking it
+                    if (ModSbdp.DEBUG) ModSbdp.log("onNotificationUpdated: " +
+                            "notification for '" + ProgressInfo.keyToString(key) +
+                            "' not supported (anymore)");
+                    postRemoval(key);
+                }
+                break;
+            case MSG_NOTIF_REMOVED:
+                postRemoval(key);
+                break;
+        }
+    }
+
+    // In god mode every known notification gets a token bucket. Updates exceeding
+    // the rate aren't processed further; only the latest of them is kept and
+    // delivered as soon as next token is available, so the final state of a source
+    // (e.g. completed download) is never lost. Removals are never throttled.
+    private boolean isThrottled(int what, long key, RawNotification raw) {
+        if (!mGodMode || mRateLimit <= 0) return false;
+        SourceState state = mSourceStates.get(key);
+        if (state == null) return false;
+
+        final long now = SystemClock.uptimeMillis();
+        if (state.pending == null && state.tryAcquire(now, mRateLimit)) {
+            state.admittedCount++;
+            return false;
+        }
+
+        final boolean flushScheduled = (state.pending != null);
+        if (flushScheduled) {
+            // superseded by the latest one
+            recycleRaw(state.pending);
+        }
+        state.pending = raw;
+        state.pendingWhat = what;
+        state.throttledCount++;
+        mThrottledEventCount++;
+        if (!flushScheduled) {
+            mWorkerHandler.sendMessageAtTime(
+                    mWorkerHandler.obtainMessage(MSG_FLUSH_THROTTLED, state),
+                    now + state.getTimeToNextToken(mRateLimit));
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("Throttled event for '" +
+                ProgressInfo.keyToString(key) + "'; throttled=" + state.throttledCount);
+        return true;
+    }
+
+    private void flushThrottled(SourceState state) {
+        RawNotification raw = state.pending;
+        state.pending = null;
+        // source might have been removed or reset meanwhile, pending is recycled then
+        if (raw == null || mSourceStates.get(state.key) != state) return;
+
+        state.refill(SystemClock.uptimeMillis(), mRateLimit);
+        state.tokens = Math.max(0f, state.tokens - 1f);
+        state.admittedCount++;
+        try {
+            processNotification(state.pendingWhat, state.key, raw);
+        } finally {
+            recycleRaw(raw);
+        }
+    }
+
+    private void postProgress(int what, long key, RawNotification raw) {
+        SourceState state = (key != NO_KEY ? mSourceStates.get(key) : null);
+        if (state == null) {
+            if (mSourceStates.size() >= MAX_SOURCE_STATES) {
+                evictOldestSourceState();
+            }
+            key = getKey(raw, true);
+            if (key == NO_KEY) return;
+            state = new SourceState(key);
+            mSourceStates.put(key, state);
+        } else if (state.progress == mProgress && state.max == mMax &&
+                state.groupSummary == mGroupSummary) {
+            onEventDropped(key);
+            return;
+        }
+        state.progress = mProgress;
+        state.max = mMax;
+        state.groupSummary = mGroupSummary;
+        state.lastPostedMs = SystemClock.uptimeMillis();
+        postResult(what, key);
+    }
+
+    private void evictOldestSourceState() {
+        int oldest = 0;
+        for (int i = 1; i < mSourceStates.size(); i++) {
+            if (mSourceStates.valueAt(i).lastPostedMs <
+                    mSourceStates.valueAt(oldest).lastPostedMs) {
+                oldest = i;
+            }
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("Evicted state of '" +
+                ProgressInfo.keyToString(mSourceStates.keyAt(oldest)) + "'");
+        removeSourceStateAt(oldest);
+    }
+
+    private void removeSourceStateAt(int index) {
+        // cancels throttled delivery, if any
+        SourceState state = mSourceStates.valueAt(index);
+        if (state.pending != null) {
+            recycleRaw(state.pending);
+            state.pending = null;
+        }
+        releaseKey(mSourceStates.keyAt(index));
+        mSourceStates.removeAt(index);
+    }
+
+    private void clearSourceStates() {
+        synchronized (mSourceStates) {
+            while (mSourceStates.size() > 0) {
+                removeSourceStateAt(mSourceStates.size() - 1);
+            }
+        }
+    }
+
+    private void postRemoval(long key) {
+        final int index = mSourceStates.indexOfKey(key);
+        if (index < 0) {
+            // nothing was ever posted for this key
+            onEventDropped(key);
+            return;
+        }
+        SourceState state = mSourceStates.valueAt(index);
+        if (ModSbdp.DEBUG && state.throttledCount > 0) ModSbdp.log("Throttling stats for '" +
+                ProgressInfo.keyToString(key) + "': admitted=" + state.admittedCount +
+                "; throttled=" + state.throttledCount);
+        removeSourceStateAt(index);
+        postResult(MSG_PROGRESS_REMOVED, key);
+    }
+
+    private void onEventDropped(long key) {
+        mDroppedEventCount++;
+        if (ModSbdp.DEBUG) ModSbdp.log("Dropped no-op event for '" +
+                ProgressInfo.keyToString(key) + "'; applied=" + mAppliedEventCount +
+                "; dropped=" + mDroppedEventCount);
+    }
+
+    private void postResult(int what, long key) {
+        mAppliedEventCount++;
+        ProgressEvent event = obtainEvent();
+        event.key = key;
+        event.progress = mProgress;
+        event.max = mMax;
+        mMainHandler.obtainMessage(what, event).sendToTarget();
+    }
+
+    private ProgressEvent obtainEvent() {
+        synchronized (this) {
+            ProgressEvent event = mEventPool;
+            if (event != null) {
+                mEventPool = event.next;
+                event.next = null;
+                return event;
+            }
+        }
+        return new ProgressEvent();
+    }
+
+    private void recycleEvent(ProgressEvent event) {
+        synchronized (this) {
+            event.next = mEventPool;
+            mEventPool = event;
+        }
+    }
+
+    private RawNotification obtainRaw() {
+        synchronized (this) {
+            RawNotification raw = mRawPool;
+            if (raw != null) {
+                mRawPool = raw.next;
+                raw.next = null;
+                return raw;
+            }
+        }
+        return new RawNotification();
+    }
+
+    private void recycleRaw(RawNotification raw) {
+        // don't keep notification data alive while pooled
+        raw.pkg = null;
+        raw.tag = null;
+        raw.actions = null;
+        synchronized (this) {
+            raw.next = mRawPool;
+            mRawPool = raw;
+        }
+    }
+
+    private Handler.Callback mMainCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            ProgressEvent event = (ProgressEvent) msg.obj;
+            if (mListener != null) {
+                switch (msg.what) {
+                    case MSG_PROGRESS_ADDED:
+                        mListener.onProgressAdded(event.key, event.progress, event.max);
+                        break;
+                    case MSG_PROGRESS_UPDATED:
+                        mListener.onProgressUpdated(event.key, event.progress, event.max);
+                        break;
+                    case MSG_PROGRESS_REMOVED:
+                        mListener.onProgressRemoved(event.key);
+                        break;
+                }
+            }
+            recycleEvent(event);
+            return true;
+        }
+    };
+
+    private boolean verifyNotification(RawNotification raw) {
+        // package was already checked by prefilter
+        mGroupSummary = raw.groupSummary;
+        if (raw.hasProgress) {
+            mProgress = raw.progress;
+            mMax = raw.max;
+            return true;
+        }
+        return (raw.actions != null && getProgressInfoFromActions(raw.actions));
+    }
+
+    // Reduces notification identity to a primitive key. Package and download manager
+    // tag suffix are interned to ordinals, so distinct strings never share a key,
+    // and tag based keys can't collide with id based ones thanks to kind bit.
+    // Ordinals are acquired for a new source state and released along with it,
+    // otherwise existing ones are only looked up and NO_KEY means unknown source.
+    private long getKey(RawNotification raw, boolean acquire) {
+        final boolean tagKind = (Build.VERSION.SDK_INT > 17 && PACKAGE_DOWNLOADS.equals(raw.pkg));
+        final String tag = raw.tag;
+        final int sep = (tagKind && tag != null ? tag.indexOf(':') : -1);
+        if (tagKind && sep == -1) {
+            if (ModSbdp.DEBUG) ModSbdp.log("getKey: Unexpected notification tag: " + tag);
+            return NO_KEY;
+        }
+
+        final int pkgOrdinal = (acquire ? mPackages.acquire(raw.pkg, 0) : mPackages.find(raw.pkg, 0));
+        if (pkgOrdinal == StringInterner.NONE) return NO_KEY;
+        final long pkgKey = (long) pkgOrdinal << KEY_PACKAGE_SHIFT;
+        long key;
+        if (tagKind) {
+            final int tagOrdinal = (acquire ? mTags.acquire(tag, sep + 1) : mTags.find(tag, sep + 1));
+            if (tagOrdinal == StringInterner.NONE) return NO_KEY;
+            key = pkgKey | KEY_KIND_TAG | tagOrdinal;
+        } else {
+            key = pkgKey | (raw.id & 0xFFFFFFFFL);
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("getKey: " + raw.pkg + ":" +
+                (raw.tag != null ? raw.tag : String.valueOf(raw.id)) +
+                " -> " + ProgressInfo.keyToString(key));
+        return key;
+    }
+
+    private void releaseKey(long key) {
+        mPackages.release((int) (key >>> KEY_PACKAGE_SHIFT));
+        if ((key & KEY_KIND_TAG) != 0) {
+            mTags.release((int) key);
+        }
+    }
+
+    // hook thread only; extras are plain values, cheap to read right away
+    @SuppressLint("NewApi")
+    private boolean getProgressExtras(Notification n) {
+        if (Build.VERSION.SDK_INT > 18 &&
+            n.extras.getBoolean(EXTRA_PROGRESS_INDETERMINATE)) {
+            mExtractedProgress = 0;
+            mExtractedMax = ProgressInfo.MAX_INDETERMINATE;
+            return true;
+        } else if (Build.VERSION.SDK_INT > 18 &&
+            n.extras.containsKey(EXTRA_PROGRESS) &&
+            n.extras.containsKey(EXTRA_PROGRESS_MAX) &&
+            n.extras.getInt(EXTRA_PROGRESS_MAX) > 0) {
+            mExtractedProgress = n.extras.getInt(EXTRA_PROGRESS);
+            mExtractedMax = n.extras.getInt(EXTRA_PROGRESS_MAX);
+            return true;
+        }
+        return false;
+    }
+
+    // hook thread only; actions are walked later on worker thread
+    @SuppressWarnings("deprecation")
+    private static List<?> copyProgressActions(Notification n) {
+        RemoteViews view = (n.bigContentView != null ? n.bigContentView : n.contentView);
+        return (view != null ? RemoteViewsProgressExtractor.copyActions(view) : null);
+    }
+
+    private boolean getProgressInfoFromActions(List<?> actions) {
+        if (mRemoteViewsExtractor.extract(actions)) {
+            if (mRemoteViewsExtractor.isIndeterminate()) {
+                mProgress = 0;
+                mMax = ProgressInfo.MAX_INDETERMINATE;
+            } else {
+                mMax = mRemoteViewsExtractor.getMax();
+                mProgress = mRemoteViewsExtractor.getProgress();
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import android.os.SystemClock;
+
+class ProgressInfo {
+    static final long MAX_IDLE_TIME = 10000; // ms
+    // upper bound of idle time for downloads known to report progress rarely
+    static final long MAX_IDLE_TIME_SLOW = 60000; // ms
+    private static final int SAMPLE_COUNT = 8;
+    private static final float RATE_SMOOTHING = 0.3f;
+    // progress of unknown length is reported with max of zero
+    static final int MAX_INDETERMINATE = 0;
+
+    final long key;
+    int progress;
+    int max;
+    // elapsedRealtime based, immune to wall clock changes
+    long lastUpdatedMs;
+    // position in DeadlineScheduler's heap or -1 if not scheduled
+    int heapIndex = -1;
+    // slot in ProgressRegistry or -1 if not registered
+    int slot = -1;
+    private long mIdleDeadlineMs;
+
+    // Ring buffer of (time, progress) samples. Rate is measured over the whole
+    // window and smoothed with EWMA; nothing is allocated after construction.
+    private final long[] mSampleTimes = new long[SAMPLE_COUNT];
+    private final int[] mSampleProgress = new int[SAMPLE_COUNT];
+    private int mSampleHead;
+    private int mSampleCount;
+    private float mRate = -1f; // progress units per ms
+
+    ProgressInfo(long key, int progress, int max) {
+        this.key = key;
+        this.progress = progress;
+        this.max = max;
+        this.lastUpdatedMs = SystemClock.elapsedRealtime();
+        addSample(progress, lastUpdatedMs);
+        mIdleDeadlineMs = lastUpdatedMs + getIdleTimeout();
+    }
+
+    void update(int progress, int max) {
+        if (max != this.max || progress < this.progress) {
+            resetEstimator();
+        }
+        this.progress = progress;
+        this.max = max;
+        this.lastUpdatedMs = SystemClock.elapsedRealtime();
+        addSample(progress, lastUpdatedMs);
+        mIdleDeadlineMs = lastUpdatedMs + getIdleTimeout();
+    }
+
+    private void resetEstimator() {
+        mSampleHead = 0;
+        mSampleCount = 0;
+        mRate = -1f;
+    }
+
+    private void addSample(int progress, long nowMs) {
+        if (mSampleCount > 0) {
+            final int oldest = (mSampleHead - mSampleCount + SAMPLE_COUNT) % SAMPLE_COUNT;
+            final long dt = nowMs - mSampleTimes[oldest];
+            if (dt > 0) {
+                final float windowRate = (float)(progress - mSampleProgress[oldest]) / dt;
+                mRate = (mRate < 0f ? windowRate :
+                    mRate + RATE_SMOOTHING * (windowRate - mRate));
+            }
+        }
+        mSampleTimes[mSampleHead] = nowMs;
+        mSampleProgress[mSampleHead] = progress;
+        mSampleHead = (mSampleHead + 1) % SAMPLE_COUNT;
+        if (mSampleCount < SAMPLE_COUNT) mSampleCount++;
+    }
+
+    /**
+     * Smoothed rate in progress units per second or -1 if not known yet.
+     */
+    float getRate() {
+        return (mRate < 0f ? -1f : mRate * 1000f);
+    }
+
+    /**
+     * Estimated time to completion in ms or -1 if not known.
+     */
+    long getEtaMs() {
+        if (isIndeterminate() || mRate <= 0f) return -1;
+        return (long) ((max - progress) / mRate);
+    }
+
+    // Average time between progress reports within sample window or -1 if not known
+    long getSampleIntervalMs() {
+        if (mSampleCount < 2) return -1;
+        final int newest = (mSampleHead - 1 + SAMPLE_COUNT) % SAMPLE_COUNT;
+        final int oldest = (mSampleHead - mSampleCount + SAMPLE_COUNT) % SAMPLE_COUNT;
+        return (mSampleTimes[newest] - mSampleTimes[oldest]) / (mSampleCount - 1);
+    }
+
+    // Downloads reporting progress rarely are given more time before considered idle
+    long getIdleTimeout() {
+        final long interval = getSampleIntervalMs();
+        if (interval < 0) return MAX_IDLE_TIME;
+        return Math.min(Math.max(MAX_IDLE_TIME, interval * 3), MAX_IDLE_TIME_SLOW);
+    }
+
+    boolean isIndeterminate() {
+        return max == MAX_INDETERMINATE;
+    }
+
+    float getFraction() {
+        return (max > 0 ? ((float)progress/(float)max) : 0f);
+    }
+
+    /**
+     * elapsedRealtime at which download is considered idle if no progress arrives.
+     */
+    long getIdleDeadline() {
+        return mIdleDeadlineMs;
+    }
+
+    static String keyToString(long key) {
+        return Long.toHexString(key);
+    }
+}
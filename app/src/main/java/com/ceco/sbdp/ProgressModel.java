@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Download progress state shared by all status bars showing the bar. Events from
+ * ingestor are applied here once: tracked downloads, idle timeouts, rotation of the
+ * current download and completion sound. Renderers attached to the model are only
+ * told what changed and read the rest from the shared registry. Main thread only.
+ */
+class ProgressModel implements NotificationIngestor.Listener, DeadlineScheduler.Callback {
+    private static final int INDEX_CYCLER_FREQUENCY = 5000; // ms
+    // most recently updated downloads tracked at once
+    static final int MAX_TRACKED_PROGRESS = 32;
+
+    interface Renderer {
+        // set of downloads or the current one has changed
+        void onProgressChanged(boolean fadeOutAndIn);
+        // progress of a single download has changed
+        void onProgressUpdated(ProgressInfo pi);
+    }
+
+    private final ProgressRegistry mProgressList = new ProgressRegistry(MAX_TRACKED_PROGRESS);
+    private final DeadlineScheduler mScheduler =
+            new DeadlineScheduler(this, MAX_TRACKED_PROGRESS);
+    private final List<Renderer> mRenderers = new ArrayList<>();
+    private final NotificationIngestor mIngestor;
+    private final CompletionSound mCompletionSound;
+    private final PowerManager mPowerManager;
+    private SettingsSnapshot mSettings;
+    private boolean mEnabled;
+    private boolean mCycle;
+    private boolean mSoundEnabled;
+    private boolean mSoundWhenScreenOffOnly;
+
+    private SettingsStore.Listener mSettingsListener = new SettingsStore.Listener() {
+        @Override
+        public void onSettingsChanged(SettingsSnapshot settings) {
+            applySettings(settings, false);
+        }
+    };
+
+    ProgressModel(Context context, NotificationIngestor ingestor) {
+        mIngestor = ingestor;
+        mCompletionSound = new CompletionSound(context);
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        SettingsStore settingsStore = SettingsStore.getInstance(context);
+        applySettings(settingsStore.get(), true);
+        settingsStore.addListener(mSettingsListener);
+    }
+
+    private void applySettings(SettingsSnapshot settings, boolean initial) {
+        final int changed = settings.diff(mSettings);
+        mSettings = settings;
+
+        mEnabled = !"OFF".equals(settings.mode);
+        mCycle = "CYCLE".equals(settings.displayMode);
+        mSoundEnabled = settings.soundEnable;
+        mSoundWhenScreenOffOnly = settings.soundScreenOff;
+        if ((changed & (SettingsSnapshot.FIELD_SOUND_ENABLE |
+                SettingsSnapshot.FIELD_SOUND_URI)) != 0) {
+            // empty URI stands for "None" in ringtone picker
+            mCompletionSound.setUri(mSoundEnabled && !settings.soundUri.isEmpty() ?
+                    settings.soundUri : null);
+        }
+        if (initial) return;
+
+        if ((changed & SettingsSnapshot.FIELD_MODE) != 0 && !mEnabled) {
+            removeAllProgress();
+        }
+        if ((changed & SettingsSnapshot.FIELD_DISPLAY_MODE) != 0) {
+            resetIndexCycler();
+        }
+    }
+
+    ProgressRegistry getProgressList() {
+        return mProgressList;
+    }
+
+    void addRenderer(Renderer renderer) {
+        if (!mRenderers.contains(renderer)) {
+            mRenderers.add(renderer);
+            if (ModSbdp.DEBUG) ModSbdp.log("ProgressModel: renderer added; count=" +
+                    mRenderers.size());
+        }
+    }
+
+    void removeRenderer(Renderer renderer) {
+        if (mRenderers.remove(renderer) && ModSbdp.DEBUG) {
+            ModSbdp.log("ProgressModel: renderer removed; count=" + mRenderers.size());
+        }
+    }
+
+    private void notifyProgressChanged(boolean fadeOutAndIn) {
+        for (int i = 0; i < mRenderers.size(); i++) {
+            mRenderers.get(i).onProgressChanged(fadeOutAndIn);
+        }
+    }
+
+    private void notifyProgressUpdated(ProgressInfo pi) {
+        for (int i = 0; i < mRenderers.size(); i++) {
+            mRenderers.get(i).onProgressUpdated(pi);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    void maybePlaySound() {
+        if (mSoundEnabled &&
+                (!mPowerManager.isScreenOn() || !mSoundWhenScreenOffOnly)) {
+            mCompletionSound.play();
+        }
+    }
+
+    private void addProgress(ProgressInfo pi) {
+        synchronized (mProgressList) {
+            if (!mProgressList.contains(pi.key)) {
+                ProgressInfo evicted = mProgressList.put(pi);
+                if (evicted != null) {
+                    mScheduler.unschedule(evicted);
+                    mIngestor.invalidate(evicted.key);
+                    if (ModSbdp.DEBUG) ModSbdp.log("addProgress: evicted least recently " +
+                            "updated progress for '" + ProgressInfo.keyToString(evicted.key) + "'");
+                }
+                mScheduler.schedule(pi);
+                if (ModSbdp.DEBUG) ModSbdp.log("addProgress: added progress for '" +
+                        ProgressInfo.keyToString(pi.key) + "'");
+                mProgressList.setCurrent(pi);
+                resetIndexCycler();
+                notifyProgressChanged(true);
+            } else if (ModSbdp.DEBUG) {
+                ModSbdp.log("addProgress: progress for '" + ProgressInfo.keyToString(pi.key) +
+                        "' already exists");
+            }
+        }
+    }
+
+    private void removeAllProgress() {
+        synchronized (mProgressList) {
+            mProgressList.clear();
+            mScheduler.clear();
+            if (ModSbdp.DEBUG) ModSbdp.log("removeAllProgress: all cleared");
+        }
+        resetIndexCycler();
+        notifyProgressChanged(true);
+    }
+
+    private void removeProgress(long key, boolean allowSound) {
+        synchronized (mProgressList) {
+            ProgressInfo pi = mProgressList.remove(key);
+            if (pi != null) {
+                mScheduler.unschedule(pi);
+                if (ModSbdp.DEBUG) ModSbdp.log("removeProgress: removed progress for '" +
+                        ProgressInfo.keyToString(key) + "'");
+                if (allowSound) maybePlaySound();
+            }
+            mProgressList.setCurrent(mProgressList.first());
+        }
+        resetIndexCycler();
+        notifyProgressChanged(true);
+    }
+
+    private void updateProgress(long key, int max, int progress) {
+        ProgressInfo pi = mProgressList.get(key);
+        if (pi != null) {
+            final boolean changed = (pi.max != max || pi.progress != progress);
+            mProgressList.update(pi, progress, max);
+            mScheduler.schedule(pi);
+            if (ModSbdp.DEBUG) {
+                ModSbdp.log("updateProgress: updated progress for '" +
+                        ProgressInfo.keyToString(key) + "': " +
+                        "max=" + max + "; progress=" + progress +
+                        "; rate=" + pi.getRate() + "/s; eta=" + pi.getEtaMs() + "ms");
+            }
+            if (changed) {
+                notifyProgressUpdated(pi);
+            }
+        }
+    }
+
+    @Override
+    public void onIdle(ProgressInfo pi) {
+        synchronized (mProgressList) {
+            mProgressList.remove(pi.key);
+        }
+        // so that the same progress posted again brings it back
+        mIngestor.invalidate(pi.key);
+        if (ModSbdp.DEBUG) ModSbdp.log("onIdle: removed idle progress for '" +
+                ProgressInfo.keyToString(pi.key) + "'");
+        resetIndexCycler();
+        notifyProgressChanged(true);
+    }
+
+    @Override
+    public void onRotate() {
+        final boolean rotated = mProgressList.rotate();
+        resetIndexCycler();
+        if (ModSbdp.DEBUG) ModSbdp.log("IndexCycler: rotated=" + rotated);
+        if (rotated) {
+            notifyProgressChanged(true);
+        }
+    }
+
+    // rotation is needed only while there's more than one download to show one by one
+    private void resetIndexCycler() {
+        mScheduler.setRotationDeadline(
+                mCycle && mProgressList.size() > 1 ?
+                SystemClock.elapsedRealtime() + INDEX_CYCLER_FREQUENCY :
+                    DeadlineScheduler.NONE);
+    }
+
+    @Override
+    public void onProgressAdded(long key, int progress, int max) {
+        if (!mEnabled) return;
+
+        addProgress(new ProgressInfo(key, progress, max));
+    }
+
+    @Override
+    public void onProgressUpdated(long key, int progress, int max) {
+        if (!mEnabled) return;
+
+        if (!mProgressList.contains(key)) {
+            // treat it as if it was added, e.g. to show progress in case
+            // feature has been enabled during already ongoing download
+            addProgress(new ProgressInfo(key, progress, max));
+        } else {
+            updateProgress(key, max, progress);
+        }
+    }
+
+    @Override
+    public void onProgressRemoved(long key) {
+        if (!mEnabled) return;
+
+        if (mProgressList.contains(key)) {
+            removeProgress(key, true);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+/**
+ * Fixed capacity registry of progress entries keyed by primitive key in an open
+ * addressing table with linear probing. Each entry occupies a stable slot; slots
+ * are linked into a ring in insertion order, which the display cursor rotates
+ * over, and into an LRU list by time of last update. When full, the least
+ * recently updated entry is evicted. Nothing is allocated after construction.
+ * Sums of progress and max over all entries are maintained on every change,
+ * so aggregate progress is available without iterating entries.
+ */
+class ProgressRegistry {
+    private static final int NONE = -1;
+
+    private final int mCapacity;
+    private final long[] mKeys;
+    private final ProgressInfo[] mTable;
+    private final ProgressInfo[] mSlots;
+    // display ring in insertion order
+    private final int[] mNext;
+    private final int[] mPrev;
+    private int mHead = NONE;
+    private int mCursor = NONE;
+    // least recently updated first
+    private final int[] mLruNext;
+    private final int[] mLruPrev;
+    private int mLruHead = NONE;
+    private int mLruTail = NONE;
+    // stack of unused slots
+    private final int[] mFreeSlots;
+    private int mFreeCount;
+    private int mSize;
+    // aggregates over entries of known length
+    private long mSumProgress;
+    private long mSumMax;
+
+    ProgressRegistry(int capacity) {
+        mCapacity = capacity;
+        int tableSize = 1;
+        while (tableSize < capacity * 2) tableSize <<= 1;
+        mKeys = new long[tableSize];
+        mTable = new ProgressInfo[tableSize];
+        mSlots = new ProgressInfo[capacity];
+        mNext = new int[capacity];
+        mPrev = new int[capacity];
+        mLruNext = new int[capacity];
+        mLruPrev = new int[capacity];
+        mFreeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFreeSlots[i] = capacity - 1 - i;
+        }
+        mFreeCount = capacity;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    boolean contains(long key) {
+        return get(key) != null;
+    }
+
+    ProgressInfo get(long key) {
+        final int mask = mTable.length - 1;
+        for (int i = indexFor(key, mask); mTable[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return mTable[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Entry at given slot or null if slot is free. Slot indices are stable for
+     * the lifetime of an entry.
+     */
+    ProgressInfo slotAt(int slot) {
+        return mSlots[slot];
+    }
+
+    /**
+     * Entry under display cursor or null if registry is empty.
+     */
+    ProgressInfo current() {
+        return (mCursor == NONE ? null : mSlots[mCursor]);
+    }
+
+    /**
+     * Oldest entry in display order or null if registry is empty.
+     */
+    ProgressInfo first() {
+        return (mHead == NONE ? null : mSlots[mHead]);
+    }
+
+    /**
+     * Entry following given one in display order or null if it's the last one.
+     */
+    ProgressInfo next(ProgressInfo pi) {
+        if (pi.slot == NONE) return null;
+        final int next = mNext[pi.slot];
+        return (next == mHead ? null : mSlots[next]);
+    }
+
+    void setCurrent(ProgressInfo pi) {
+        mCursor = (pi == null || pi.slot == NONE ? mHead : pi.slot);
+    }
+
+    /**
+     * Advances display cursor to the next entry. Returns true if the current entry changed.
+     */
+    boolean rotate() {
+        if (mCursor == NONE) return false;
+        final int old = mCursor;
+        mCursor = mNext[mCursor];
+        return (mCursor != old);
+    }
+
+    /**
+     * Fraction of combined progress of all entries of known length. Entries are
+     * weighted by their max, which is in bytes for sources reporting byte counts.
+     */
+    float getAggregateFraction() {
+        return (mSumMax > 0 ? (float) ((double) mSumProgress / mSumMax) : 0f);
+    }
+
+    /**
+     * True if registry holds entries but none of them is of known length.
+     */
+    boolean isAggregateIndeterminate() {
+        return (mSize > 0 && mSumMax == 0);
+    }
+
+    /**
+     * Updates values of registered entry, keeping aggregates and LRU order in sync.
+     */
+    void update(ProgressInfo pi, int progress, int max) {
+        if (pi.slot == NONE) {
+            pi.update(progress, max);
+            return;
+        }
+        removeFromSums(pi);
+        pi.update(progress, max);
+        addToSums(pi);
+        touch(pi);
+    }
+
+    /**
+     * Marks entry as most recently updated.
+     */
+    void touch(ProgressInfo pi) {
+        final int slot = pi.slot;
+        if (slot == NONE || slot == mLruTail) return;
+        lruUnlink(slot);
+        lruAppend(slot);
+    }
+
+    /**
+     * Adds entry, evicting the least recently updated one if the registry is full.
+     * Returns the evicted entry or null.
+     */
+    ProgressInfo put(ProgressInfo pi) {
+        if (contains(pi.key)) return null;
+
+        ProgressInfo evicted = null;
+        if (mFreeCount == 0) {
+            evicted = mSlots[mLruHead];
+            remove(evicted.key);
+        }
+
+        final int slot = mFreeSlots[--mFreeCount];
+        pi.slot = slot;
+        mSlots[slot] = pi;
+        insert(pi);
+        if (mHead == NONE) {
+            mHead = slot;
+            mNext[slot] = slot;
+            mPrev[slot] = slot;
+        } else {
+            final int tail = mPrev[mHead];
+            mNext[tail] = slot;
+            mPrev[slot] = tail;
+            mNext[slot] = mHead;
+            mPrev[mHead] = slot;
+        }
+        lruAppend(slot);
+        addToSums(pi);
+        mSize++;
+        return evicted;
+    }
+
+    ProgressInfo remove(long key) {
+        final int mask = mTable.length - 1;
+        int i = indexFor(key, mask);
+        while (mTable[i] != null && mKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        final ProgressInfo pi = mTable[i];
+        if (pi == null) return null;
+
+        // backward shift deletion keeps probe sequences intact without tombstones
+        int hole = i;
+        for (int j = (i + 1) & mask; mTable[j] != null; j = (j + 1) & mask) {
+            int home = indexFor(mKeys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mKeys[hole] = mKeys[j];
+                mTable[hole] = mTable[j];
+                hole = j;
+            }
+        }
+        mTable[hole] = null;
+
+        final int slot = pi.slot;
+        if (mNext[slot] == slot) {
+            mHead = NONE;
+            mCursor = NONE;
+        } else {
+            mNext[mPrev[slot]] = mNext[slot];
+            mPrev[mNext[slot]] = mPrev[slot];
+            if (mHead == slot) mHead = mNext[slot];
+            if (mCursor == slot) mCursor = mNext[slot];
+        }
+        lruUnlink(slot);
+        removeFromSums(pi);
+        mSlots[slot] = null;
+        mFreeSlots[mFreeCount++] = slot;
+        pi.slot = NONE;
+        mSize--;
+        return pi;
+    }
+
+    void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = null;
+        }
+        for (int i = 0; i < mCapacity; i++) {
+            if (mSlots[i] != null) {
+                mSlots[i].slot = NONE;
+                mSlots[i] = null;
+            }
+            mFreeSlots[i] = mCapacity - 1 - i;
+        }
+        mFreeCount = mCapacity;
+        mHead = mCursor = mLruHead = mLruTail = NONE;
+        mSumProgress = 0;
+        mSumMax = 0;
+        mSize = 0;
+    }
+
+    private void addToSums(ProgressInfo pi) {
+        if (pi.max <= 0) return;
+        mSumProgress += Math.max(0, Math.min(pi.progress, pi.max));
+        mSumMax += pi.max;
+    }
+
+    private void removeFromSums(ProgressInfo pi) {
+        if (pi.max <= 0) return;
+        mSumProgress -= Math.max(0, Math.min(pi.progress, pi.max));
+        mSumMax -= pi.max;
+    }
+
+    private void lruAppend(int slot) {
+        mLruPrev[slot] = mLruTail;
+        mLruNext[slot] = NONE;
+        if (mLruTail == NONE) {
+            mLruHead = slot;
+        } else {
+            mLruNext[mLruTail] = slot;
+        }
+        mLruTail = slot;
+    }
+
+    private void lruUnlink(int slot) {
+        final int prev = mLruPrev[slot];
+        final int next = mLruNext[slot];
+        if (prev == NONE) mLruHead = next; else mLruNext[prev] = next;
+        if (next == NONE) mLruTail = prev; else mLruPrev[next] = prev;
+    }
+
+    private void insert(ProgressInfo pi) {
+        final int mask = mTable.length - 1;
+        int i = indexFor(pi.key, mask);
+        while (mTable[i] != null) {
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = pi.key;
+        mTable[i] = pi;
+    }
+
+    private static int indexFor(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Placeholder for the progress view injected into a status bar. It only remembers
+ * the host view group and clock; the actual view with its animator, demo and
+ * receivers is built and attached when the first progress arrives or demo is
+ * requested. Until then, only the demo request receiver is registered.
+ * Stub is attached to the shared progress model only while its host is attached
+ * to a window, so status bars that went away are dropped with all they hold.
+ */
+class ProgressViewStub implements ProgressModel.Renderer, View.OnAttachStateChangeListener {
+    // stubs of status bars currently attached to a window
+    private static final List<ProgressViewStub> sAttached = new ArrayList<>();
+
+    private final ViewGroup mHost;
+    private final ProgressModel mModel;
+    private TextView mClock;
+    private StatusbarDownloadProgressView mView;
+    private boolean mDemoReceiverRegistered;
+
+    private BroadcastReceiver mDemoReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            inflate().startDemo();
+        }
+    };
+
+    ProgressViewStub(ViewGroup host, ProgressModel model) {
+        mHost = host;
+        mModel = model;
+        mHost.addOnAttachStateChangeListener(this);
+        if (mHost.getWindowToken() != null) {
+            onViewAttachedToWindow(mHost);
+        }
+    }
+
+    static void dispatchTextColorChanged(TextView textView) {
+        for (int i = 0; i < sAttached.size(); i++) {
+            sAttached.get(i).onTextColorChanged(textView);
+        }
+    }
+
+    @Override
+    public void onViewAttachedToWindow(View v) {
+        if (sAttached.contains(this)) return;
+        sAttached.add(this);
+        mModel.addRenderer(this);
+        if (mView == null) {
+            mHost.getContext().registerReceiver(mDemoReceiver,
+                    new IntentFilter(Settings.ACTION_RUN_DEMO));
+            mDemoReceiverRegistered = true;
+            if (!mModel.getProgressList().isEmpty()) {
+                inflate();
+            }
+        } else if (mClock != null) {
+            // tint changes weren't tracked while detached
+            mView.onClockColorChanged(mClock.getCurrentTextColor());
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("ProgressViewStub: attached " +
+                mHost.getClass().getSimpleName() + "; hosts=" + sAttached.size());
+    }
+
+    @Override
+    public void onViewDetachedFromWindow(View v) {
+        sAttached.remove(this);
+        mModel.removeRenderer(this);
+        if (mDemoReceiverRegistered) {
+            mHost.getContext().unregisterReceiver(mDemoReceiver);
+            mDemoReceiverRegistered = false;
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("ProgressViewStub: detached " +
+                mHost.getClass().getSimpleName() + "; hosts=" + sAttached.size());
+    }
+
+    void setClock(TextView clock) {
+        mClock = clock;
+        if (mView != null) {
+            mView.setClock(clock);
+        }
+    }
+
+    private void onTextColorChanged(TextView textView) {
+        if (textView == mClock && mView != null) {
+            mView.onClockColorChanged(textView.getCurrentTextColor());
+        }
+    }
+
+    private StatusbarDownloadProgressView inflate() {
+        if (mView == null) {
+            final long startNs = System.nanoTime();
+            mView = new StatusbarDownloadProgressView(mHost.getContext(), mModel);
+            mView.setClock(mClock);
+            mHost.addView(mView);
+            // the view handles demo requests from now on
+            if (mDemoReceiverRegistered) {
+                mHost.getContext().unregisterReceiver(mDemoReceiver);
+                mDemoReceiverRegistered = false;
+            }
+            if (ModSbdp.DEBUG) ModSbdp.log("Download progress view injected into " +
+                    mHost.getClass().getSimpleName() + " in " +
+                    (System.nanoTime() - startNs) / 1000 + "us");
+        }
+        return mView;
+    }
+
+    @Override
+    public void onProgressChanged(boolean fadeOutAndIn) {
+        // nothing to hide in a view that was never shown
+        if (mView == null && mModel.getProgressList().isEmpty()) return;
+        inflate().onProgressChanged(fadeOutAndIn);
+    }
+
+    @Override
+    public void onProgressUpdated(ProgressInfo pi) {
+        if (mView == null) {
+            inflate().onProgressChanged(true);
+        } else {
+            mView.onProgressUpdated(pi);
+        }
+    }
+}
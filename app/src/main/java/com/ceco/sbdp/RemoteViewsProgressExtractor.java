@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.widget.RemoteViews;
+
+/**
+ * Extracts progress bar values from RemoteViews actions.
+ * ReflectionAction fields are read directly through Field handles resolved
+ * once per action class. Actions of unknown layout fall back to marshalling
+ * through Parcel. The action list is copied on hook thread by copyActions, as
+ * SystemUI may still modify it; actions themselves don't change once created,
+ * so extraction runs on a background thread. Not thread safe otherwise.
+ */
+class RemoteViewsProgressExtractor {
+    private static final int PARCEL_TAG_REFLECTION_ACTION = 2;
+
+    private static class ActionFields {
+        final Field methodName;
+        final Field value;
+
+        ActionFields(Field methodName, Field value) {
+            this.methodName = methodName;
+            this.value = value;
+        }
+    }
+
+    // not a reflection action, nothing to look for
+    private static final ActionFields IRRELEVANT = new ActionFields(null, null);
+    // reflection action we don't know the layout of
+    private static final ActionFields UNKNOWN = new ActionFields(null, null);
+
+    private static volatile Field sActionsField;
+
+    private final Map<Class<?>, ActionFields> mFieldCache = new HashMap<>();
+    private int mMax;
+    private int mProgress;
+    private boolean mIndeterminate;
+
+    int getMax() {
+        return mMax;
+    }
+
+    int getProgress() {
+        return mProgress;
+    }
+
+    boolean isIndeterminate() {
+        return mIndeterminate;
+    }
+
+    /**
+     * Returns snapshot of actions of the view, or null if it has none.
+     * Hook thread only.
+     */
+    static List<Object> copyActions(RemoteViews view) {
+        try {
+            Field actionsField = sActionsField;
+            if (actionsField == null) {
+                actionsField = XposedHelpers.findField(RemoteViews.class, "mActions");
+                sActionsField = actionsField;
+            }
+            List<?> actions = (List<?>) actionsField.get(view);
+            return (actions != null && !actions.isEmpty() ?
+                    new ArrayList<Object>(actions) : null);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+            return null;
+        }
+    }
+
+    boolean extract(List<?> actions) {
+        mMax = -1;
+        mProgress = -1;
+        mIndeterminate = false;
+
+        try {
+            final int count = actions.size();
+            for (int i = 0; i < count; i++) {
+                Object action = actions.get(i);
+                ActionFields fields = getActionFields(action.getClass());
+                if (fields == IRRELEVANT) {
+                    continue;
+                } else if (fields == UNKNOWN) {
+                    extractFromParcel((Parcelable) action);
+                } else {
+                    extractFromFields(action, fields);
+                }
+            }
+
+            if (ModSbdp.DEBUG) verifyAgainstParcel(actions);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+
+        return mIndeterminate || (mMax > 0 && mProgress != -1);
+    }
+
+    private ActionFields getActionFields(Class<?> clazz) {
+        ActionFields fields = mFieldCache.get(clazz);
+        if (fields == null) {
+            fields = resolveActionFields(clazz);
+            mFieldCache.put(clazz, fields);
+        }
+        return fields;
+    }
+
+    private static ActionFields resolveActionFields(Class<?> clazz) {
+        if (!clazz.getName().contains("ReflectionAction")) {
+            if (ModSbdp.DEBUG) ModSbdp.log("RemoteViewsProgressExtractor: ignoring " + clazz.getName());
+            return IRRELEVANT;
+        }
+        Field methodName = findFieldInHierarchy(clazz, "methodName");
+        Field value = findFieldInHierarchy(clazz, "value");
+        if (methodName == null || value == null) {
+            ModSbdp.log("RemoteViewsProgressExtractor: unknown layout of " +
+                    clazz.getName() + "; using Parcel");
+            return UNKNOWN;
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("RemoteViewsProgressExtractor: fields resolved for " +
+                clazz.getName());
+        return new ActionFields(methodName, value);
+    }
+
+    private static Field findFieldInHierarchy(Class<?> clazz, String name) {
+        while (clazz != null && clazz != Object.class) {
+            try {
+                Field f = clazz.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (NoSuchFieldException ignored) {
+                clazz = clazz.getSuperclass();
+            }
+        }
+        return null;
+    }
+
+    private void extractFromFields(Object action, ActionFields fields) throws IllegalAccessException {
+        Object methodName = fields.methodName.get(action);
+        if ("setMax".equals(methodName)) {
+            Object value = fields.value.get(action);
+            if (value instanceof Integer) {
+                mMax = (Integer) value;
+                if (ModSbdp.DEBUG) ModSbdp.log("extractFromFields: max=" + mMax);
+            }
+        } else if ("setProgress".equals(methodName)) {
+            Object value = fields.value.get(action);
+            if (value instanceof Integer) {
+                mProgress = (Integer) value;
+                if (ModSbdp.DEBUG) ModSbdp.log("extractFromFields: progress=" + mProgress);
+            }
+        } else if ("setIndeterminate".equals(methodName)) {
+            Object value = fields.value.get(action);
+            if (value instanceof Boolean) {
+                mIndeterminate = (Boolean) value;
+                if (ModSbdp.DEBUG) ModSbdp.log("extractFromFields: indeterminate=" + mIndeterminate);
+            }
+        }
+    }
+
+    private void extractFromParcel(Parcelable action) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            action.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+
+            // The tag tells which type of action it is (2 is ReflectionAction)
+            int tag = parcel.readInt();
+            if (tag != PARCEL_TAG_REFLECTION_ACTION) return;
+
+            parcel.readInt(); // skip View ID
+            String methodName = parcel.readString();
+            if ("setMax".equals(methodName)) {
+                parcel.readInt(); // skip type value
+                mMax = parcel.readInt();
+                if (ModSbdp.DEBUG) ModSbdp.log("extractFromParcel: max=" + mMax);
+            } else if ("setProgress".equals(methodName)) {
+                parcel.readInt(); // skip type value
+                mProgress = parcel.readInt();
+                if (ModSbdp.DEBUG) ModSbdp.log("extractFromParcel: progress=" + mProgress);
+            } else if ("setIndeterminate".equals(methodName)) {
+                parcel.readInt(); // skip type value
+                mIndeterminate = (parcel.readInt() != 0);
+                if (ModSbdp.DEBUG) ModSbdp.log("extractFromParcel: indeterminate=" + mIndeterminate);
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    // Debug builds run the Parcel based extraction for all actions as well
+    // and report any difference from the field based result
+    private void verifyAgainstParcel(List<?> actions) {
+        final int max = mMax;
+        final int progress = mProgress;
+        final boolean indeterminate = mIndeterminate;
+        mMax = -1;
+        mProgress = -1;
+        mIndeterminate = false;
+        for (Object action : actions) {
+            if (action instanceof Parcelable) {
+                extractFromParcel((Parcelable) action);
+            }
+        }
+        if (mMax != max || mProgress != progress || mIndeterminate != indeterminate) {
+            ModSbdp.log("RemoteViewsProgressExtractor: mismatch: fields=" + progress + "/" + max +
+                    (indeterminate ? "?" : "") + "; parcel=" + mProgress + "/" + mMax +
+                    (mIndeterminate ? "?" : ""));
+        }
+        mMax = max;
+        mProgress = progress;
+        mIndeterminate = indeterminate;
+    }
+}
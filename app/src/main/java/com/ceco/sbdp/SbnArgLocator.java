@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Locates StatusBarNotification among arguments of hooked method.
+ * Argument index is resolved once per method on its first call and then used
+ * directly. Everything is based on class checks, nothing relies on exceptions.
+ */
+final class SbnArgLocator {
+    private static final int NOT_FOUND = -1;
+
+    private final Class<?> mSbnClass;
+    private final Map<Member, Integer> mArgIndexes = new IdentityHashMap<>();
+    private Member mLastMethod;
+    private int mLastArgIndex = NOT_FOUND;
+
+    SbnArgLocator(Class<?> sbnClass) {
+        mSbnClass = sbnClass;
+    }
+
+    Object locate(Member method, Object[] args) {
+        if (mSbnClass == null || args == null) return null;
+
+        int index;
+        if (method == mLastMethod) {
+            index = mLastArgIndex;
+        } else {
+            Integer cached = mArgIndexes.get(method);
+            if (cached != null) {
+                index = cached;
+            } else {
+                index = resolveArgIndex(method, args);
+                mArgIndexes.put(method, index);
+                if (ModSbdp.DEBUG) ModSbdp.log("SbnArgLocator: " + method.getName() +
+                        " has StatusBarNotification at index " + index);
+            }
+            mLastMethod = method;
+            mLastArgIndex = index;
+        }
+
+        if (index == NOT_FOUND || index >= args.length || !mSbnClass.isInstance(args[index])) {
+            return null;
+        }
+        return args[index];
+    }
+
+    private int resolveArgIndex(Member method, Object[] args) {
+        Class<?>[] paramTypes = null;
+        if (method instanceof Method) {
+            paramTypes = ((Method) method).getParameterTypes();
+        } else if (method instanceof Constructor) {
+            paramTypes = ((Constructor<?>) method).getParameterTypes();
+        }
+
+        // declared type first, then fall back to what's actually passed in
+        if (paramTypes != null) {
+            for (int i = 0; i < paramTypes.length; i++) {
+                if (mSbnClass.isAssignableFrom(paramTypes[i])) {
+                    return i;
+                }
+            }
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (mSbnClass.isInstance(args[i])) {
+                return i;
+            }
+        }
+        return NOT_FOUND;
+    }
+}
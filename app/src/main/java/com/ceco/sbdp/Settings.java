@@ -47,6 +47,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -66,16 +67,20 @@ public class Settings extends Activity {
     public static final String PREF_CAT_KEY_SOUNDS = "pref_cat_sounds";
     public static final String PREF_CAT_KEY_ABOUT = "pref_cat_about";
     public static final String PREF_KEY_MODE = "pref_mode";
+    public static final String PREF_KEY_DISPLAY_MODE = "pref_display_mode";
     public static final String PREF_KEY_EDGE_MARGIN = "pref_edge_margin2";
     public static final String PREF_KEY_COLOR = "pref_color";
     public static final String PREF_KEY_COLOR_FOLLOW_CLOCK = "pref_color_follow_clock";
     public static final String PREF_KEY_GOD_MODE = "pref_god_mode";
     public static final String PREF_KEY_ANIMATED = "pref_animated";
+    public static final String PREF_KEY_PREDICTIVE = "pref_predictive";
     public static final String PREF_KEY_CENTERED = "pref_centered";
     public static final String PREF_KEY_THICKNESS = "pref_thickness";
     public static final String PREF_KEY_SOUND_ENABLE = "pref_sound_enable";
     public static final String PREF_KEY_SOUND = "pref_sound";
     public static final String PREF_KEY_SOUND_SCREEN_OFF = "pref_sound_screen_off";
+    public static final String PREF_KEY_SOURCES = "pref_sources";
+    public static final String PREF_KEY_RATE_LIMIT = "pref_rate_limit";
 
     public static final String PREF_KEY_ABOUT = "pref_about";
     public static final String PREF_KEY_ABOUT_DPPP = "pref_about_dppp";
@@ -83,17 +88,7 @@ public class Settings extends Activity {
     public static final String PREF_KEY_HIDE_LAUNCHER_ICON = "pref_hide_launcher_icon";
 
     public static final String ACTION_SETTINGS_CHANGED = "sbdp.intent.action.SETTINGS_CHANGED";
-    public static final String EXTRA_MODE = "mode";
-    public static final String EXTRA_EDGE_MARGIN = "edgeMargin";
-    public static final String EXTRA_COLOR = "color";
-    public static final String EXTRA_COLOR_FOLLOW_CLOCK = "colorFollowClock";
-    public static final String EXTRA_GOD_MODE = "godMode";
-    public static final String EXTRA_ANIMATED = "animated";
-    public static final String EXTRA_CENTERED = "centered";
-    public static final String EXTRA_THICKNESS = "thickness";
-    public static final String EXTRA_SOUND_ENABLE = "soundEnable";
-    public static final String EXTRA_SOUND_URI = "soundUri";
-    public static final String EXTRA_SOUND_SCREEN_OFF = "soundScreenOff";
+    public static final String EXTRA_SNAPSHOT = "snapshot";
     public static final String ACTION_RUN_DEMO = "sbdp.intent.action.RUN_DEMO";
 
     private static SettingsFragment sSettingsFragment;
@@ -118,6 +113,15 @@ public class Settings extends Activity {
         }
     }
 
+    static String getDefaultSources() {
+        StringBuilder sb = new StringBuilder();
+        for (String pkg : NotificationIngestor.SUPPORTED_PACKAGES) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(pkg);
+        }
+        return sb.toString();
+    }
+
     private static void fixFolderPermissionsAsync(final Context context) {
         AsyncTask.execute(new Runnable() {
             @SuppressLint("SetWorldReadable")
@@ -210,9 +214,12 @@ public class Settings extends Activity {
         private PreferenceCategory mPrefCatSounds;
         private PreferenceCategory mPrefCatAbout;
         private ListPreference mPrefMode;
+        private ListPreference mPrefDisplayMode;
         private Preference mPrefAbout;
         private ListPreference mPrefAboutDonate;
         private RingtonePreference mPrefSound;
+        private EditTextPreference mPrefSources;
+        private SettingsPersister mSettingsPersister;
         private IabHelper mIabHelper; 
 
         private static List<String> sSkuList = new ArrayList<>(Arrays.asList(
@@ -235,8 +242,15 @@ public class Settings extends Activity {
             mPrefCatSounds = (PreferenceCategory) findPreference(PREF_CAT_KEY_SOUNDS);
             mPrefCatAbout = (PreferenceCategory) findPreference(PREF_CAT_KEY_ABOUT);
             mPrefMode = (ListPreference) findPreference(PREF_KEY_MODE);
+            mPrefDisplayMode = (ListPreference) findPreference(PREF_KEY_DISPLAY_MODE);
             mPrefAboutDonate = (ListPreference) findPreference(PREF_KEY_ABOUT_DONATE);
             mPrefSound = (RingtonePreference) findPreference(PREF_KEY_SOUND);
+            mPrefSources = (EditTextPreference) findPreference(PREF_KEY_SOURCES);
+            if (!mPrefs.contains(PREF_KEY_SOURCES)) {
+                mPrefSources.setText(getDefaultSources());
+            }
+            mSettingsPersister = new SettingsPersister(getActivity(), mPrefs);
+            mSettingsPersister.ensureFileExists();
 
             mPrefAbout = findPreference(PREF_KEY_ABOUT);
             String version = "";
@@ -265,6 +279,7 @@ public class Settings extends Activity {
 
         protected void updateSummaries() {
             mPrefMode.setSummary(mPrefMode.getEntry());
+            mPrefDisplayMode.setSummary(mPrefDisplayMode.getEntry());
 
             mPrefSound.setSummary("");
             String val = mPrefs.getString(PREF_KEY_SOUND,
@@ -301,6 +316,7 @@ public class Settings extends Activity {
         @Override
         public void onPause() {
             super.onPause();
+            mSettingsPersister.flush();
             fixFolderPermissionsAsync(getActivity());
             if (mPrefAboutDonate.getDialog() != null &&
                     mPrefAboutDonate.getDialog().isShowing()) {
@@ -357,59 +373,19 @@ public class Settings extends Activity {
             }
         }
 
-        @SuppressLint("ApplySharedPref")
         @Override
         public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
             updateSummaries();
-            Intent intent = new Intent();
-
-            if (key.equals(PREF_KEY_MODE)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_MODE, prefs.getString(key, "TOP"));
-            } else if (key.equals(PREF_KEY_EDGE_MARGIN)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_EDGE_MARGIN, prefs.getInt(key, 0));
-            } else if (key.equals(PREF_KEY_COLOR)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_COLOR, prefs.getInt(key,
-                        getResources().getInteger(R.integer.color_default)));
-            } else if (key.equals(PREF_KEY_COLOR_FOLLOW_CLOCK)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_COLOR_FOLLOW_CLOCK, prefs.getBoolean(key, false));
-            } else if (key.equals(PREF_KEY_GOD_MODE)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_GOD_MODE, prefs.getBoolean(key, false));
-            } else if (key.equals(PREF_KEY_HIDE_LAUNCHER_ICON)) {
+
+            if (key.equals(PREF_KEY_HIDE_LAUNCHER_ICON)) {
                 int mode = prefs.getBoolean(key, false) ?
                         PackageManager.COMPONENT_ENABLED_STATE_DISABLED :
                             PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
                 getActivity().getPackageManager().setComponentEnabledSetting(
                         new ComponentName(getActivity(), "com.ceco.sbdp.SettingsAlias"),
                         mode, PackageManager.DONT_KILL_APP);
-            } else if (key.equals(PREF_KEY_ANIMATED)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_ANIMATED, prefs.getBoolean(key, true));
-            } else if (key.equals(PREF_KEY_CENTERED)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_CENTERED, prefs.getBoolean(key, false));
-            } else if (key.equals(PREF_KEY_THICKNESS)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_THICKNESS, prefs.getInt(key, 1));
-            } else if (key.equals(PREF_KEY_SOUND_ENABLE)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_SOUND_ENABLE, prefs.getBoolean(key, false));
-            } else if (key.equals(PREF_KEY_SOUND)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_SOUND_URI, prefs.getString(key,
-                        "content://settings/system/notification_sound"));
-            } else if (key.equals(PREF_KEY_SOUND_SCREEN_OFF)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_SOUND_SCREEN_OFF, prefs.getBoolean(key, false));
-            }
-
-            if (ACTION_SETTINGS_CHANGED.equals(intent.getAction())) {
-                prefs.edit().commit();
-                getActivity().sendBroadcast(intent);
+            } else {
+                mSettingsPersister.schedule();
             }
         }
 
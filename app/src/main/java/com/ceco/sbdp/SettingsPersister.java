@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Handler;
+
+/**
+ * Settings UI side of settings delivery. Preference changes arriving within a short
+ * window, e.g. while dragging a slider or pressing plus/minus repeatedly, are
+ * coalesced into a single snapshot which is written to settings file and broadcast
+ * to SystemUI on a background thread. Snapshots equal to the last one sent are
+ * skipped. Pending changes are flushed when settings UI is paused.
+ */
+class SettingsPersister {
+    private static final long DEBOUNCE_MS = 300;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final Handler mHandler = new Handler();
+    private SettingsSnapshot mLastSent;
+    private boolean mPending;
+
+    private final Runnable mPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    SettingsPersister(Context context, SharedPreferences prefs) {
+        mContext = context.getApplicationContext();
+        mPrefs = prefs;
+    }
+
+    static File getSettingsFile(Context context) {
+        return new File(Utils.getDataDir(context), SettingsStore.FILE_NAME);
+    }
+
+    /**
+     * Called for every preference change; restarts the coalescing window.
+     */
+    void schedule() {
+        mPending = true;
+        mHandler.removeCallbacks(mPersistRunnable);
+        mHandler.postDelayed(mPersistRunnable, DEBOUNCE_MS);
+    }
+
+    /**
+     * Persists pending changes right away.
+     */
+    void flush() {
+        if (mPending) {
+            persist();
+        }
+    }
+
+    /**
+     * Makes sure settings file exists so SystemUI doesn't need to fall back to preferences.
+     */
+    void ensureFileExists() {
+        if (!getSettingsFile(mContext).exists()) {
+            persist();
+        }
+    }
+
+    private void persist() {
+        mHandler.removeCallbacks(mPersistRunnable);
+        mPending = false;
+        final SettingsSnapshot settings = SettingsSnapshot.fromPreferences(
+                mPrefs, System.currentTimeMillis());
+        if (mLastSent != null && settings.diff(mLastSent) == 0) {
+            Utils.log("SettingsPersister: no effective change");
+            return;
+        }
+        mLastSent = settings;
+
+        // serial executor keeps writes in order
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                SettingsStore.write(getSettingsFile(mContext), settings);
+                Intent intent = new Intent(Settings.ACTION_SETTINGS_CHANGED);
+                intent.putExtra(Settings.EXTRA_SNAPSHOT, settings.toByteArray());
+                mContext.sendBroadcast(intent);
+            }
+        });
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.os.Build;
+
+/**
+ * Immutable set of all module settings, serialized to a compact versioned blob.
+ * Settings UI sends whole snapshot at once; receivers compare it with the one
+ * they applied last and act on changed fields only.
+ */
+final class SettingsSnapshot {
+    private static final int MAGIC = 0x53424450; // "SBDP"
+    static final int FORMAT_VERSION = 1;
+
+    static final int FIELD_MODE = 1;
+    static final int FIELD_DISPLAY_MODE = 1 << 1;
+    static final int FIELD_EDGE_MARGIN = 1 << 2;
+    static final int FIELD_COLOR = 1 << 3;
+    static final int FIELD_COLOR_FOLLOW_CLOCK = 1 << 4;
+    static final int FIELD_GOD_MODE = 1 << 5;
+    static final int FIELD_ANIMATED = 1 << 6;
+    static final int FIELD_PREDICTIVE = 1 << 7;
+    static final int FIELD_CENTERED = 1 << 8;
+    static final int FIELD_THICKNESS = 1 << 9;
+    static final int FIELD_SOUND_ENABLE = 1 << 10;
+    static final int FIELD_SOUND_URI = 1 << 11;
+    static final int FIELD_SOUND_SCREEN_OFF = 1 << 12;
+    static final int FIELD_SOURCES = 1 << 13;
+    static final int FIELD_RATE_LIMIT = 1 << 14;
+    static final int FIELD_ALL = (1 << 15) - 1;
+
+    // boolean settings packed into single int
+    private static final int FLAG_COLOR_FOLLOW_CLOCK = 1;
+    private static final int FLAG_GOD_MODE = 1 << 1;
+    private static final int FLAG_ANIMATED = 1 << 2;
+    private static final int FLAG_PREDICTIVE = 1 << 3;
+    private static final int FLAG_CENTERED = 1 << 4;
+    private static final int FLAG_SOUND_ENABLE = 1 << 5;
+    private static final int FLAG_SOUND_SCREEN_OFF = 1 << 6;
+
+    static final String DEFAULT_SOUND_URI = "content://settings/system/notification_sound";
+
+    // increases with every snapshot sent by settings UI; 0 for one read from preferences
+    final long sequence;
+    final String mode;
+    final String displayMode;
+    final int edgeMargin;
+    final int color;
+    final boolean colorFollowClock;
+    final boolean godMode;
+    final boolean animated;
+    final boolean predictive;
+    final boolean centered;
+    final int thickness;
+    final boolean soundEnable;
+    final String soundUri;
+    final boolean soundScreenOff;
+    final String sources;
+    final int rateLimit;
+
+    static int getDefaultColor() {
+        return (Build.VERSION.SDK_INT >= 19 ? Color.WHITE : 0xff0099cc);
+    }
+
+    static SettingsSnapshot fromPreferences(SharedPreferences prefs, long sequence) {
+        return new SettingsSnapshot(sequence,
+                prefs.getString(Settings.PREF_KEY_MODE, "TOP"),
+                prefs.getString(Settings.PREF_KEY_DISPLAY_MODE, "CYCLE"),
+                prefs.getInt(Settings.PREF_KEY_EDGE_MARGIN, 0),
+                prefs.getInt(Settings.PREF_KEY_COLOR, getDefaultColor()),
+                prefs.getBoolean(Settings.PREF_KEY_COLOR_FOLLOW_CLOCK, false),
+                prefs.getBoolean(Settings.PREF_KEY_GOD_MODE, false),
+                prefs.getBoolean(Settings.PREF_KEY_ANIMATED, true),
+                prefs.getBoolean(Settings.PREF_KEY_PREDICTIVE, false),
+                prefs.getBoolean(Settings.PREF_KEY_CENTERED, false),
+                prefs.getInt(Settings.PREF_KEY_THICKNESS, 1),
+                prefs.getBoolean(Settings.PREF_KEY_SOUND_ENABLE, false),
+                prefs.getString(Settings.PREF_KEY_SOUND, DEFAULT_SOUND_URI),
+                prefs.getBoolean(Settings.PREF_KEY_SOUND_SCREEN_OFF, false),
+                prefs.getString(Settings.PREF_KEY_SOURCES, Settings.getDefaultSources()),
+                prefs.getInt(Settings.PREF_KEY_RATE_LIMIT, NotificationIngestor.DEFAULT_RATE_LIMIT));
+    }
+
+    private SettingsSnapshot(long sequence, String mode, String displayMode, int edgeMargin,
+            int color, boolean colorFollowClock, boolean godMode, boolean animated,
+            boolean predictive, boolean centered, int thickness, boolean soundEnable,
+            String soundUri, boolean soundScreenOff, String sources, int rateLimit) {
+        this.sequence = sequence;
+        this.mode = (mode != null ? mode : "TOP");
+        this.displayMode = (displayMode != null ? displayMode : "CYCLE");
+        this.edgeMargin = edgeMargin;
+        this.color = color;
+        this.colorFollowClock = colorFollowClock;
+        this.godMode = godMode;
+        this.animated = animated;
+        this.predictive = predictive;
+        this.centered = centered;
+        this.thickness = thickness;
+        this.soundEnable = soundEnable;
+        this.soundUri = (soundUri != null ? soundUri : "");
+        this.soundScreenOff = soundScreenOff;
+        this.sources = (sources != null ? sources : "");
+        this.rateLimit = rateLimit;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(sequence);
+            out.writeUTF(mode);
+            out.writeUTF(displayMode);
+            out.writeByte(edgeMargin);
+            out.writeInt(color);
+            out.writeByte(thickness);
+            out.writeByte(rateLimit);
+            int flags = 0;
+            if (colorFollowClock) flags |= FLAG_COLOR_FOLLOW_CLOCK;
+            if (godMode) flags |= FLAG_GOD_MODE;
+            if (animated) flags |= FLAG_ANIMATED;
+            if (predictive) flags |= FLAG_PREDICTIVE;
+            if (centered) flags |= FLAG_CENTERED;
+            if (soundEnable) flags |= FLAG_SOUND_ENABLE;
+            if (soundScreenOff) flags |= FLAG_SOUND_SCREEN_OFF;
+            out.writeShort(flags);
+            out.writeUTF(soundUri);
+            out.writeUTF(sources);
+            out.flush();
+        } catch (IOException e) {
+            // can't happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns snapshot decoded from blob or null if blob is not valid.
+     */
+    static SettingsSnapshot fromByteArray(byte[] blob) {
+        if (blob == null) return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+        try {
+            if (in.readInt() != MAGIC) return null;
+            final int formatVersion = in.readUnsignedByte();
+            if (formatVersion != FORMAT_VERSION) {
+                ModSbdp.log("SettingsSnapshot: unsupported format version " + formatVersion);
+                return null;
+            }
+            final long sequence = in.readLong();
+            final String mode = in.readUTF();
+            final String displayMode = in.readUTF();
+            final int edgeMargin = in.readUnsignedByte();
+            final int color = in.readInt();
+            final int thickness = in.readUnsignedByte();
+            final int rateLimit = in.readUnsignedByte();
+            final int flags = in.readUnsignedShort();
+            final String soundUri = in.readUTF();
+            final String sources = in.readUTF();
+            return new SettingsSnapshot(sequence, mode, displayMode, edgeMargin, color,
+                    (flags & FLAG_COLOR_FOLLOW_CLOCK) != 0,
+                    (flags & FLAG_GOD_MODE) != 0,
+                    (flags & FLAG_ANIMATED) != 0,
+                    (flags & FLAG_PREDICTIVE) != 0,
+                    (flags & FLAG_CENTERED) != 0,
+                    thickness,
+                    (flags & FLAG_SOUND_ENABLE) != 0,
+                    soundUri,
+                    (flags & FLAG_SOUND_SCREEN_OFF) != 0,
+                    sources, rateLimit);
+        } catch (IOException e) {
+            ModSbdp.log("SettingsSnapshot: invalid blob: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns mask of FIELD_* flags for values differing from the other snapshot.
+     * All fields are considered changed when other is null.
+     */
+    int diff(SettingsSnapshot other) {
+        if (other == null) return FIELD_ALL;
+        int changed = 0;
+        if (!mode.equals(other.mode)) changed |= FIELD_MODE;
+        if (!displayMode.equals(other.displayMode)) changed |= FIELD_DISPLAY_MODE;
+        if (edgeMargin != other.edgeMargin) changed |= FIELD_EDGE_MARGIN;
+        if (color != other.color) changed |= FIELD_COLOR;
+        if (colorFollowClock != other.colorFollowClock) changed |= FIELD_COLOR_FOLLOW_CLOCK;
+        if (godMode != other.godMode) changed |= FIELD_GOD_MODE;
+        if (animated != other.animated) changed |= FIELD_ANIMATED;
+        if (predictive != other.predictive) changed |= FIELD_PREDICTIVE;
+        if (centered != other.centered) changed |= FIELD_CENTERED;
+        if (thickness != other.thickness) changed |= FIELD_THICKNESS;
+        if (soundEnable != other.soundEnable) changed |= FIELD_SOUND_ENABLE;
+        if (!soundUri.equals(other.soundUri)) changed |= FIELD_SOUND_URI;
+        if (soundScreenOff != other.soundScreenOff) changed |= FIELD_SOUND_SCREEN_OFF;
+        if (!sources.equals(other.sources)) changed |= FIELD_SOURCES;
+        if (rateLimit != other.rateLimit) changed |= FIELD_RATE_LIMIT;
+        return changed;
+    }
+}
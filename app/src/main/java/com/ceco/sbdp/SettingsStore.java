@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import de.robv.android.xposed.XposedBridge;
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Settings as seen by SystemUI. Settings UI writes each snapshot to a small binary
+ * file with fixed header (magic, header version, payload length, CRC32) before
+ * broadcasting it. SystemUI memory maps the file on startup instead of parsing
+ * preferences XML and watches it, so changes are picked up even if broadcast is
+ * missed. Listeners are notified on main thread.
+ */
+final class SettingsStore {
+    static final String FILE_NAME = "sbdp_settings.bin";
+    private static final int MAGIC = 0x53424453; // "SBDS"
+    private static final int HEADER_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    interface Listener {
+        void onSettingsChanged(SettingsSnapshot settings);
+    }
+
+    private static SettingsStore sInstance;
+
+    private final File mFile;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+    private volatile SettingsSnapshot mCurrent;
+    // must be referenced to keep watching
+    private FileObserver mFileObserver;
+
+    static synchronized SettingsStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SettingsStore(context, ModSbdp.getSettingsFile());
+        }
+        return sInstance;
+    }
+
+    private SettingsStore(Context context, File file) {
+        mFile = file;
+        final long startNs = System.nanoTime();
+        mCurrent = read(file);
+        if (mCurrent == null) {
+            // settings UI hasn't written the file yet
+            mCurrent = SettingsSnapshot.fromPreferences(ModSbdp.getXSharedPreferences(), 0);
+            if (ModSbdp.DEBUG) ModSbdp.log("SettingsStore: loaded from preferences in " +
+                    (System.nanoTime() - startNs) / 1000 + "us");
+        } else if (ModSbdp.DEBUG) {
+            ModSbdp.log("SettingsStore: loaded from " + file + " in " +
+                    (System.nanoTime() - startNs) / 1000 + "us");
+        }
+
+        IntentFilter intentFilter = new IntentFilter(Settings.ACTION_SETTINGS_CHANGED);
+        context.registerReceiver(mBroadcastReceiver, intentFilter);
+        startWatching();
+    }
+
+    SettingsSnapshot get() {
+        return mCurrent;
+    }
+
+    void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            publish(SettingsSnapshot.fromByteArray(
+                    intent.getByteArrayExtra(Settings.EXTRA_SNAPSHOT)));
+        }
+    };
+
+    private void startWatching() {
+        // file is replaced by rename, so the directory is watched rather than the file
+        File dir = mFile.getParentFile();
+        if (dir == null) return;
+        mFileObserver = new FileObserver(dir.getAbsolutePath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (!FILE_NAME.equals(path)) return;
+                final SettingsSnapshot settings = read(mFile);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        publish(settings);
+                    }
+                });
+            }
+        };
+        mFileObserver.startWatching();
+    }
+
+    // Main thread only. The same snapshot usually arrives via broadcast and file,
+    // and a delayed broadcast may follow the file of a newer one, so anything not
+    // newer than the current snapshot is ignored.
+    private void publish(SettingsSnapshot settings) {
+        if (settings == null || settings.sequence <= mCurrent.sequence) return;
+        if (ModSbdp.DEBUG) ModSbdp.log("SettingsStore: new settings; sequence=" +
+                settings.sequence);
+        mCurrent = settings;
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onSettingsChanged(settings);
+        }
+    }
+
+    static SettingsSnapshot read(File file) {
+        if (!file.exists()) return null;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE || size > HEADER_SIZE + MAX_PAYLOAD_SIZE) {
+                ModSbdp.log("SettingsStore: unexpected file size " + size);
+                return null;
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt() != MAGIC || buf.getInt() != HEADER_VERSION) {
+                ModSbdp.log("SettingsStore: unsupported file header");
+                return null;
+            }
+            final int length = buf.getInt();
+            final int crc = buf.getInt();
+            if (length < 0 || length > size - HEADER_SIZE) {
+                ModSbdp.log("SettingsStore: invalid payload length " + length);
+                return null;
+            }
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload, 0, length);
+            if ((int) crc32.getValue() != crc) {
+                ModSbdp.log("SettingsStore: checksum mismatch");
+                return null;
+            }
+            return SettingsSnapshot.fromByteArray(payload);
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+            return null;
+        } finally {
+            if (raf != null) try { raf.close(); } catch (Throwable ignored) { }
+        }
+    }
+
+    /**
+     * Settings UI side. Writes snapshot to temporary file and renames it over
+     * the real one, so SystemUI never sees partially written file.
+     */
+    @SuppressLint("SetWorldReadable")
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static boolean write(File file, SettingsSnapshot settings) {
+        final byte[] payload = settings.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(HEADER_VERSION);
+        header.putInt(payload.length);
+        header.putInt((int) crc32.getValue());
+
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            out.write(header.array());
+            out.write(payload);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            tmpFile.setReadable(true, false);
+            if (!tmpFile.renameTo(file)) {
+                Utils.log("SettingsStore: unable to rename " + tmpFile);
+                return false;
+            }
+            return true;
+        } catch (Throwable t) {
+            Utils.log("SettingsStore: error writing " + file + ": " + t.getMessage());
+            return false;
+        } finally {
+            if (out != null) try { out.close(); } catch (Throwable ignored) { }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Immutable set of package names allowed as progress sources.
+ * Table size is picked so that all packages land in distinct slots when possible,
+ * making a lookup a single probe plus one equals() on hit.
+ * Safe to be shared between threads.
+ */
+final class SourceFilter {
+    private static final int MAX_TABLE_SIZE = 4096;
+
+    private final String[] mTable;
+    private final int mMask;
+
+    private SourceFilter(Set<String> packages) {
+        int tableSize = 1;
+        while (tableSize < packages.size() * 2) tableSize <<= 1;
+        while (tableSize < MAX_TABLE_SIZE && !isCollisionFree(packages, tableSize - 1)) {
+            tableSize <<= 1;
+        }
+        mTable = new String[tableSize];
+        mMask = tableSize - 1;
+        for (String pkg : packages) {
+            int i = indexFor(pkg, mMask);
+            while (mTable[i] != null) {
+                i = (i + 1) & mMask;
+            }
+            mTable[i] = pkg;
+        }
+        if (ModSbdp.DEBUG) ModSbdp.log("SourceFilter: " + packages.size() + " packages; " +
+                "tableSize=" + tableSize);
+    }
+
+    static SourceFilter of(Collection<String> packages) {
+        return new SourceFilter(new LinkedHashSet<>(packages));
+    }
+
+    static SourceFilter parse(String packages) {
+        Set<String> set = new LinkedHashSet<>();
+        if (packages != null) {
+            for (String pkg : packages.split("[\\s,;]+")) {
+                if (!pkg.isEmpty()) set.add(pkg);
+            }
+        }
+        return new SourceFilter(set);
+    }
+
+    boolean contains(String pkg) {
+        if (pkg == null) return false;
+        for (int i = indexFor(pkg, mMask); mTable[i] != null; i = (i + 1) & mMask) {
+            if (mTable[i].equals(pkg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCollisionFree(Set<String> packages, int mask) {
+        boolean[] used = new boolean[mask + 1];
+        for (String pkg : packages) {
+            int i = indexFor(pkg, mask);
+            if (used[i]) return false;
+            used[i] = true;
+        }
+        return true;
+    }
+
+    private static int indexFor(String pkg, int mask) {
+        int h = pkg.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.robv.android.xposed.XposedHelpers;
+import android.app.Notification;
+
+/**
+ * Typed access to the StatusBarNotification fields we need. Fields are resolved
+ * once per concrete class, getters don't allocate.
+ */
+final class StatusBarNotificationAccessor {
+    private static final Map<Class<?>, StatusBarNotificationAccessor> sAccessors = new HashMap<>();
+    private static volatile StatusBarNotificationAccessor sLastAccessor;
+
+    private final Class<?> mClass;
+    private final Field mPkgField;
+    private final Field mNotificationField;
+    private final Field mTagField;
+    private final Field mIdField;
+
+    private StatusBarNotificationAccessor(Class<?> clazz) {
+        mClass = clazz;
+        mPkgField = XposedHelpers.findField(clazz, "pkg");
+        mNotificationField = XposedHelpers.findField(clazz, "notification");
+        mTagField = XposedHelpers.findField(clazz, "tag");
+        mIdField = XposedHelpers.findField(clazz, "id");
+    }
+
+    static StatusBarNotificationAccessor forClass(Class<?> clazz) {
+        StatusBarNotificationAccessor accessor = sLastAccessor;
+        if (accessor != null && accessor.mClass == clazz) {
+            return accessor;
+        }
+        synchronized (sAccessors) {
+            accessor = sAccessors.get(clazz);
+            if (accessor == null) {
+                accessor = new StatusBarNotificationAccessor(clazz);
+                sAccessors.put(clazz, accessor);
+                if (ModSbdp.DEBUG) ModSbdp.log("StatusBarNotificationAccessor: fields resolved for " +
+                        clazz.getName());
+            }
+        }
+        sLastAccessor = accessor;
+        return accessor;
+    }
+
+    static StatusBarNotificationAccessor of(Object statusBarNotif) {
+        return forClass(statusBarNotif.getClass());
+    }
+
+    String getPackageName(Object statusBarNotif) {
+        try {
+            return (String) mPkgField.get(statusBarNotif);
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        }
+    }
+
+    Notification getNotification(Object statusBarNotif) {
+        try {
+            return (Notification) mNotificationField.get(statusBarNotif);
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        }
+    }
+
+    String getTag(Object statusBarNotif) {
+        try {
+            return (String) mTagField.get(statusBarNotif);
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        }
+    }
+
+    int getId(Object statusBarNotif) {
+        try {
+            return mIdField.getInt(statusBarNotif);
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        }
+    }
+}
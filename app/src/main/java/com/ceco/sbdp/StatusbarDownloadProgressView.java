@@ -15,451 +15,444 @@
  */
 package com.ceco.sbdp;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-
-import de.robv.android.xposed.XSharedPreferences;
-import de.robv.android.xposed.XposedBridge;
-import de.robv.android.xposed.XposedHelpers;
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ObjectAnimator;
 import android.animation.PropertyValuesHolder;
-import android.annotation.SuppressLint;
-import android.app.Notification;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.graphics.Canvas;
 import android.graphics.Color;
-import android.media.AudioManager;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
-import android.net.Uri;
-import android.os.Build;
-import android.os.Parcel;
-import android.os.Parcelable;
-import android.os.PowerManager;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.View;
 import android.view.animation.DecelerateInterpolator;
+import android.view.animation.LinearInterpolator;
 import android.widget.FrameLayout;
-import android.widget.RemoteViews;
 import android.widget.TextView;
 
-public class StatusbarDownloadProgressView extends View {
-    public static final List<String> SUPPORTED_PACKAGES = new ArrayList<>(Arrays.asList(
-            "com.android.providers.downloads",
-            "com.android.bluetooth",
-            "com.mediatek.bluetooth",
-            "com.android.chrome",
-            "org.mozilla.firefox",
-            "org.mozilla.firefox_beta",
-            "org.mozilla.fennec_aurora",
-            "org.mozilla.fennec"
-    ));
-
+public class StatusbarDownloadProgressView extends View implements ProgressModel.Renderer {
     private static final int ANIM_DURATION = 400; // ms
-    private static final int INDEX_CYCLER_FREQUENCY = 5000; // ms
-    private static final long MAX_IDLE_TIME = 10000; // ms
-    private static final String EXTRA_PROGRESS = "android.progress";
-    private static final String EXTRA_PROGRESS_MAX = "android.progressMax";
-
-    private static class ProgressInfo {
-        String id;
-        int progress;
-        int max;
-        long lastUpdatedMs;
-
-        ProgressInfo(String id, int progress, int max) {
-            this.id = id;
-            this.progress = progress;
-            this.max = max;
-            this.lastUpdatedMs = System.currentTimeMillis();
-        }
-
-        float getFraction() {
-            return (max > 0 ? ((float)progress/(float)max) : 0f);
-        }
-
-        boolean isIdle() {
-            long idleTime = (System.currentTimeMillis() - this.lastUpdatedMs);
-            if (ModSbdp.DEBUG) ModSbdp.log("ProgressInfo: '" + this.id + 
-                    "' is idle for " + idleTime + "ms");
-            return (idleTime > MAX_IDLE_TIME);
-        }
-    }
+    // extrapolation never runs further ahead than this
+    private static final long MAX_PREDICTION_TIME = 15000; // ms
 
     private enum Mode { OFF, TOP, BOTTOM }
     private Mode mMode;
+    private enum DisplayMode { CYCLE, AGGREGATE, SEGMENTED }
+    private DisplayMode mDisplayMode;
     private int mEdgeMarginPx;
-    private boolean mGodMode;
+    private SettingsSnapshot mSettings;
     private boolean mAnimated;
+    private boolean mPredictive;
     private ObjectAnimator mAnimator;
+    private DecelerateInterpolator mDecelerateInterpolator;
+    private LinearInterpolator mLinearInterpolator;
+    private float mTargetScaleX;
+    private Choreographer mChoreographer;
+    private boolean mFrameScheduled;
+    private boolean mPendingFadeOutAndIn;
     private boolean mCentered;
     private int mHeightPx;
     private Demo mDemo;
     private TextView mClock;
+    private int mClockColor;
     private int mColor;
     private boolean mFollowClockColor;
-    private boolean mSoundEnabled;
-    private String mSoundUri;
-    private boolean mSoundWhenScreenOffOnly;
-    private PowerManager mPowerManager;
-    private final Map<String, ProgressInfo> mProgressList = new LinkedHashMap<>();
-    private int mCurrentIndex = 0;
+    private final ProgressModel mModel;
+    // shared with other status bars, owned by model
+    private final ProgressRegistry mProgressList;
+    private IndeterminateSweep mIndeterminateSweep;
+    private final Paint mSegmentPaint = new Paint();
+    private final Paint mTrackPaint = new Paint();
+    private final RectF mSegmentRect = new RectF();
+    private float mSegmentGapPx;
+    // vertical placement of the bar within status bar high view
+    private int mBarTop;
 
     private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
-        @SuppressWarnings("deprecation")
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(Settings.ACTION_SETTINGS_CHANGED)) {
-                if (intent.hasExtra(Settings.EXTRA_MODE)) {
-                    mMode = Mode.valueOf(intent.getStringExtra(Settings.EXTRA_MODE));
-                    if (mMode == Mode.OFF) {
-                        removeProgress(null, false);
-                    } else {
-                        updatePosition();
-                    }
-                }
-                if (intent.hasExtra(Settings.EXTRA_EDGE_MARGIN)) {
-                    mEdgeMarginPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            intent.getIntExtra(Settings.EXTRA_EDGE_MARGIN, 0),
-                            getResources().getDisplayMetrics());
-                    updatePosition();
-                }
-                if (intent.hasExtra(Settings.EXTRA_COLOR)) {
-                    mColor = intent.getIntExtra(Settings.EXTRA_COLOR, 
-                            Build.VERSION.SDK_INT >= 19 ? Color.WHITE : 
-                                getResources().getColor(android.R.color.holo_blue_dark));
-                    updateColor();
-                }
-                if (intent.hasExtra(Settings.EXTRA_COLOR_FOLLOW_CLOCK)) {
-                    mFollowClockColor = intent.getBooleanExtra(
-                            Settings.EXTRA_COLOR_FOLLOW_CLOCK, false);
-                    updateColor();
-                }
-                if (intent.hasExtra(Settings.EXTRA_GOD_MODE)) {
-                    mGodMode = intent.getBooleanExtra(Settings.EXTRA_GOD_MODE, false);
-                }
-                if (intent.hasExtra(Settings.EXTRA_ANIMATED)) {
-                    mAnimated = intent.getBooleanExtra(Settings.EXTRA_ANIMATED, true);
-                }
-                if (intent.hasExtra(Settings.EXTRA_CENTERED)) {
-                    mCentered = intent.getBooleanExtra(Settings.EXTRA_CENTERED, false);
-                    setPivotX(mCentered ? getWidth()/2f : 0f);
-                }
-                if (intent.hasExtra(Settings.EXTRA_THICKNESS)) {
-                    mHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            intent.getIntExtra(Settings.EXTRA_THICKNESS, 1),
-                            getResources().getDisplayMetrics());
-                    updatePosition();
-                }
-                if (intent.hasExtra(Settings.EXTRA_SOUND_ENABLE)) {
-                    mSoundEnabled = intent.getBooleanExtra(Settings.EXTRA_SOUND_ENABLE, false);
-                }
-                if (intent.hasExtra(Settings.EXTRA_SOUND_URI)) {
-                    mSoundUri = intent.getStringExtra(Settings.EXTRA_SOUND_URI);
-                }
-                if (intent.hasExtra(Settings.EXTRA_SOUND_SCREEN_OFF)) {
-                    mSoundWhenScreenOffOnly = intent.getBooleanExtra(Settings.EXTRA_SOUND_SCREEN_OFF, false);
-                }
-            } else if (intent.getAction().equals(Settings.ACTION_RUN_DEMO)) {
-                mDemo.start();
+            if (intent.getAction().equals(Settings.ACTION_RUN_DEMO)) {
+                startDemo();
+            } else if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
+                mIndeterminateSweep.setPaused(true);
+            } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
+                mIndeterminateSweep.setPaused(false);
             }
         }
     };
 
-    @SuppressWarnings("deprecation")
-    public StatusbarDownloadProgressView(Context context) {
+    private SettingsStore.Listener mSettingsListener = new SettingsStore.Listener() {
+        @Override
+        public void onSettingsChanged(SettingsSnapshot settings) {
+            applySettings(settings, false);
+        }
+    };
+
+    public StatusbarDownloadProgressView(Context context, ProgressModel model) {
         super(context);
 
-        XSharedPreferences prefs = ModSbdp.getXSharedPreferences();
-        mMode = Mode.valueOf(prefs.getString(Settings.PREF_KEY_MODE, "TOP"));
-        mEdgeMarginPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                prefs.getInt(Settings.PREF_KEY_EDGE_MARGIN, 0),
-                getResources().getDisplayMetrics());
-        mGodMode = prefs.getBoolean(Settings.PREF_KEY_GOD_MODE, false);
-        mAnimated = prefs.getBoolean(Settings.PREF_KEY_ANIMATED, true);
-        mCentered = prefs.getBoolean(Settings.PREF_KEY_CENTERED, false);
-        mHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                prefs.getInt(Settings.PREF_KEY_THICKNESS, 1),
-                getResources().getDisplayMetrics());
-        mColor = prefs.getInt(Settings.PREF_KEY_COLOR, 
-                Build.VERSION.SDK_INT >= 19 ? Color.WHITE : 
-                    getResources().getColor(android.R.color.holo_blue_dark));
-        mFollowClockColor = prefs.getBoolean(Settings.PREF_KEY_COLOR_FOLLOW_CLOCK, false);
-        mSoundEnabled = prefs.getBoolean(Settings.PREF_KEY_SOUND_ENABLE, false);
-        mSoundUri = prefs.getString(Settings.PREF_KEY_SOUND,
-                "content://settings/system/notification_sound");
-        mSoundWhenScreenOffOnly = prefs.getBoolean(Settings.PREF_KEY_SOUND_SCREEN_OFF, false);
+        mModel = model;
+        mProgressList = model.getProgressList();
+
+        applySettings(SettingsStore.getInstance(context).get(), true);
 
+        // layout never changes; placement and thickness of the bar are applied in onDraw
         FrameLayout.LayoutParams lp = new FrameLayout.LayoutParams(
-                FrameLayout.LayoutParams.MATCH_PARENT, mHeightPx);
+                FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT,
+                Gravity.TOP | Gravity.START);
         setLayoutParams(lp);
         updateColor();
         setScaleX(0f);
         setVisibility(View.GONE);
         updatePosition();
 
+        mDecelerateInterpolator = new DecelerateInterpolator();
+        mLinearInterpolator = new LinearInterpolator();
         mAnimator = new ObjectAnimator();
         mAnimator.setTarget(this);
-        mAnimator.setInterpolator(new DecelerateInterpolator());
+        mAnimator.setInterpolator(mDecelerateInterpolator);
         mAnimator.setDuration(ANIM_DURATION);
         mAnimator.setRepeatCount(0);
 
-        mDemo = new Demo();
+        mChoreographer = Choreographer.getInstance();
 
-        mPowerManager = (PowerManager) getContext().getSystemService(Context.POWER_SERVICE);
+        mSegmentGapPx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 2,
+                getResources().getDisplayMetrics());
 
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Settings.ACTION_SETTINGS_CHANGED);
-        intentFilter.addAction(Settings.ACTION_RUN_DEMO);
-        context.registerReceiver(mBroadcastReceiver, intentFilter);
-    }
+        mIndeterminateSweep = new IndeterminateSweep(this);
 
-    public void setClock(TextView clock) {
-        mClock = clock;
-        updateColor();
+        mDemo = new Demo();
     }
 
-    private void updateColor() {
-        int color = mColor;
-        if (mFollowClockColor && mClock != null) {
-            color = mClock.getCurrentTextColor();
-        }
-        setBackgroundColor(color);
-    }
+    // Receivers are held only while attached, so views of status bars that went
+    // away don't leak. Settings changed while detached are caught up on attach.
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        SettingsStore settingsStore = SettingsStore.getInstance(getContext());
+        applySettings(settingsStore.get(), false);
+        settingsStore.addListener(mSettingsListener);
 
-    @SuppressWarnings("deprecation")
-    private void maybePlaySound() {
-        if (mSoundEnabled &&
-                (!mPowerManager.isScreenOn() || !mSoundWhenScreenOffOnly)) {
-            try {
-                final Ringtone sfx = RingtoneManager.getRingtone(getContext(),
-                        Uri.parse(mSoundUri));
-                if (sfx != null) {
-                    sfx.setStreamType(AudioManager.STREAM_NOTIFICATION);
-                    sfx.play();
-                }
-            } catch (Throwable t) {
-                XposedBridge.log(t);
-            }
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Settings.ACTION_RUN_DEMO);
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        getContext().registerReceiver(mBroadcastReceiver, intentFilter);
+        // nothing to catch up on for a hidden bar with nothing to show; resyncing
+        // then would only fade out a demo started right after attach
+        if (!mProgressList.isEmpty() || getVisibility() == View.VISIBLE) {
+            scheduleProgressViewUpdate(true);
         }
     }
 
     @Override
-    public void onSizeChanged(int w, int h, int oldw, int oldh) {
-        if (ModSbdp.DEBUG) ModSbdp.log("w=" + w + "; h=" + h);
-        setPivotX(mCentered ? w/2f : 0f);
-    }
-
-    private void addProgress(ProgressInfo pi) {
-        synchronized (mProgressList) {
-            if (!mProgressList.containsKey(pi.id)) {
-                mProgressList.put(pi.id, pi);
-                if (ModSbdp.DEBUG) ModSbdp.log("addProgress: added progress for '" + pi.id + "'");
-                resetIndexCycler(mProgressList.size()-1);
-                updateProgressView(true);
-            } else if (ModSbdp.DEBUG) {
-                ModSbdp.log("addProgress: progress for '" + pi.id + "' already exists");
-            }
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        SettingsStore.getInstance(getContext()).removeListener(mSettingsListener);
+        getContext().unregisterReceiver(mBroadcastReceiver);
+        if (mFrameScheduled) {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
         }
+        removeCallbacks(mFadeOutRunnable);
+        mIndeterminateSweep.stop();
     }
 
-    private void removeProgress(String id, boolean allowSound) {
-        synchronized (mProgressList) {
-            if (id == null) {
-                mProgressList.clear();
-                if (ModSbdp.DEBUG) ModSbdp.log("removeProgress: all cleared");
-            } else if (mProgressList.containsKey(id)) {
-                mProgressList.remove(id);
-                if (ModSbdp.DEBUG) ModSbdp.log("removeProgress: removed progress for '" + id + "'");
-                if (allowSound) maybePlaySound();
-            }
-        }
-        resetIndexCycler(0);
-        updateProgressView(true);
-    }
+    // Applies only settings that differ from those applied last time. On initial
+    // load values are just taken, the rest of the view isn't set up yet.
+    private void applySettings(SettingsSnapshot settings, boolean initial) {
+        final int changed = settings.diff(mSettings);
+        mSettings = settings;
+        if (ModSbdp.DEBUG) ModSbdp.log("applySettings: sequence=" + settings.sequence +
+                "; changed=" + Integer.toHexString(changed));
 
-    private void updateProgress(String id, int max, int progress) {
-        ProgressInfo pi = mProgressList.get(id);
-        if (pi != null) {
-            pi.max = max;
-            pi.progress = progress;
-            pi.lastUpdatedMs = System.currentTimeMillis();
-            if (ModSbdp.DEBUG) {
-                ModSbdp.log("updateProgress: updated progress for '" + id + "': " +
-                        "max=" + max + "; progress=" + progress);
-            }
-            updateProgressView(false);
+        if ((changed & SettingsSnapshot.FIELD_MODE) != 0) {
+            mMode = Mode.valueOf(settings.mode);
         }
-    }
-
-    private Runnable mIndexCyclerRunnable = new Runnable() {
-        @Override
-        public void run() {
-            boolean shouldUpdateView = false;
-
-            // clear idle first
-            synchronized (mProgressList) {
-                List<String> toRemove = new ArrayList<>();
-                for (ProgressInfo pi : mProgressList.values())
-                    if (pi.isIdle()) toRemove.add(pi.id);
-                for (String id : toRemove)
-                    mProgressList.remove(id);
-                shouldUpdateView |= !toRemove.isEmpty();
-            }
-
-            // cycle index
-            final int oldIndex = mCurrentIndex++;
-            if (mCurrentIndex >= mProgressList.size()) mCurrentIndex = 0;
-            if (ModSbdp.DEBUG) ModSbdp.log("IndexCycler: oldIndex=" + oldIndex + "; " +
-                    "mCurrentIndex=" + mCurrentIndex);
-            shouldUpdateView |= (mCurrentIndex != oldIndex);
-
-            if (shouldUpdateView) {
-                updateProgressView(mCurrentIndex != oldIndex);
-            }
-
-            if (mProgressList.size() > 0) {
-                StatusbarDownloadProgressView.this.postDelayed(this, INDEX_CYCLER_FREQUENCY);
-            }
+        if ((changed & SettingsSnapshot.FIELD_DISPLAY_MODE) != 0) {
+            mDisplayMode = DisplayMode.valueOf(settings.displayMode);
         }
-    };
-
-    private void resetIndexCycler(int toIndex) {
-        removeCallbacks(mIndexCyclerRunnable);
-        mCurrentIndex = toIndex;
-        if (mProgressList.size() > 0) {
-            postDelayed(mIndexCyclerRunnable, INDEX_CYCLER_FREQUENCY);
+        if ((changed & SettingsSnapshot.FIELD_EDGE_MARGIN) != 0) {
+            mEdgeMarginPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                    settings.edgeMargin, getResources().getDisplayMetrics());
+        }
+        if ((changed & SettingsSnapshot.FIELD_THICKNESS) != 0) {
+            mHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                    settings.thickness, getResources().getDisplayMetrics());
+        }
+        mColor = settings.color;
+        mFollowClockColor = settings.colorFollowClock;
+        mAnimated = settings.animated;
+        mPredictive = settings.predictive;
+        mCentered = settings.centered;
+        if (initial) return;
+
+        if ((changed & (SettingsSnapshot.FIELD_MODE | SettingsSnapshot.FIELD_EDGE_MARGIN |
+                SettingsSnapshot.FIELD_THICKNESS)) != 0) {
+            updatePosition();
+        }
+        if ((changed & (SettingsSnapshot.FIELD_COLOR |
+                SettingsSnapshot.FIELD_COLOR_FOLLOW_CLOCK)) != 0) {
+            updateColor();
+        }
+        if ((changed & SettingsSnapshot.FIELD_CENTERED) != 0 && !mIndeterminateSweep.isRunning()) {
+            setPivotX(mCentered ? getWidth()/2f : 0f);
+        }
+        if ((changed & SettingsSnapshot.FIELD_DISPLAY_MODE) != 0) {
+            scheduleProgressViewUpdate(true);
         }
     }
 
-    public void onNotificationAdded(Object statusBarNotif) {
-        if (mMode == Mode.OFF) return;
-
-        ProgressInfo pi = verifyNotification(statusBarNotif);
-        if (pi == null) {
-            if (ModSbdp.DEBUG) ModSbdp.log("onNotificationAdded: ignoring unsupported notification");
-            return;
+    public void setClock(TextView clock) {
+        mClock = clock;
+        if (clock != null) {
+            mClockColor = clock.getCurrentTextColor();
         }
+        updateColor();
+    }
 
-        addProgress(pi);
+    // pushed whenever clock text color is set, e.g. on status bar tint change
+    void onClockColorChanged(int color) {
+        if (color == mClockColor) return;
+        mClockColor = color;
+        if (mFollowClockColor) updateColor();
     }
 
-    public void onNotificationUpdated(Object statusBarNotif) {
-        if (mMode == Mode.OFF) return;
+    void startDemo() {
+        mDemo.start();
+    }
 
-        ProgressInfo pi = verifyNotification(statusBarNotif);
-        if (pi == null) {
-            String id = getIdentifier(statusBarNotif);
-            if (id != null && mProgressList.containsKey(id)) {
-                removeProgress(id, true);
-                if (ModSbdp.DEBUG) ModSbdp.log("onNotificationUpdated: removing no longer " +
-                        "supported notification for '" + id + "'");
-            } else if (ModSbdp.DEBUG) {
-                ModSbdp.log("onNotificationUpdated: ignoring unsupported notification");
-            }
-            return;
+    private void updateColor() {
+        int color = mColor;
+        if (mFollowClockColor && mClock != null) {
+            color = mClockColor;
         }
+        final boolean changed = (mSegmentPaint.getColor() != color);
+        mSegmentPaint.setColor(color);
+        mTrackPaint.setColor(color);
+        mTrackPaint.setAlpha(Color.alpha(color) / 4);
+        if (changed) invalidate();
+    }
 
-        if (!mProgressList.containsKey(pi.id)) {
-            // treat it as if it was added, e.g. to show progress in case
-            // feature has been enabled during already ongoing download
-            addProgress(pi);
+    @Override
+    public void onSizeChanged(int w, int h, int oldw, int oldh) {
+        if (ModSbdp.DEBUG) ModSbdp.log("w=" + w + "; h=" + h);
+        updatePosition();
+        if (mIndeterminateSweep.isRunning()) {
+            mIndeterminateSweep.onSizeChanged();
         } else {
-            updateProgress(pi.id, pi.max, pi.progress);
+            setPivotX(mCentered ? w/2f : 0f);
         }
     }
 
-    public void onNotificationRemoved(Object statusBarNotif) {
-        if (mMode == Mode.OFF) return;
+    @Override
+    public void onProgressChanged(boolean fadeOutAndIn) {
+        scheduleProgressViewUpdate(fadeOutAndIn);
+    }
 
-        String id = getIdentifier(statusBarNotif);
-        if (id != null && mProgressList.containsKey(id)) {
-            removeProgress(id, true);
+    @Override
+    public void onProgressUpdated(ProgressInfo pi) {
+        if (mDisplayMode == DisplayMode.SEGMENTED && getVisibility() == View.VISIBLE) {
+            // segments are redrawn in place; dirty rect would be ignored by
+            // hardware accelerated status bar anyway
+            invalidate();
+        } else {
+            scheduleProgressViewUpdate(false);
         }
     }
 
-    private ProgressInfo verifyNotification(Object statusBarNotif) {
-        if (statusBarNotif == null) {
-            return null;
+    // Progress changes arriving between two frames are collected here and applied
+    // at most once per vsync, whatever the refresh rate of the display is.
+    // Nothing is posted to Choreographer unless something has actually changed.
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            final boolean fadeOutAndIn = mPendingFadeOutAndIn;
+            mPendingFadeOutAndIn = false;
+            updateProgressView(fadeOutAndIn);
         }
+    };
 
-        String id = getIdentifier(statusBarNotif);
-        if (id == null)
-            return null;
-
-        String pkgName = (String) XposedHelpers.getObjectField(statusBarNotif, "pkg");
-        Notification n = (Notification) XposedHelpers.getObjectField(statusBarNotif, "notification");
-        if (n != null && (SUPPORTED_PACKAGES.contains(pkgName) || mGodMode)) {
-            return getProgressInfo(id, n);
+    private void scheduleProgressViewUpdate(boolean fadeOutAndIn) {
+        mPendingFadeOutAndIn |= fadeOutAndIn;
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
         }
-        return null;
     }
 
-    protected String getIdentifier(Object statusBarNotif) {
-        if (statusBarNotif == null) return null;
-        String pkgName = (String) XposedHelpers.getObjectField(statusBarNotif, "pkg");
-        if (Build.VERSION.SDK_INT > 17 && SUPPORTED_PACKAGES.get(0).equals(pkgName)) {
-            String tag = (String) XposedHelpers.getObjectField(statusBarNotif, "tag");
-            if (tag != null && tag.contains(":")) {
-                String id = pkgName + ":" + tag.substring(tag.indexOf(":")+1);
-                if (ModSbdp.DEBUG) ModSbdp.log("getIdentifier: " + id);
-                return id;
+    private final Runnable mFadeOutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mAnimator.isStarted()) {
+                mAnimator.end();
             }
-            if (ModSbdp.DEBUG) ModSbdp.log("getIdentifier: Unexpected notification tag: " + tag);
-            return null;
-        } else {
-            String id = pkgName + ":" +
-                    String.valueOf(XposedHelpers.getIntField(statusBarNotif, "id"));
-            if (ModSbdp.DEBUG) ModSbdp.log("getIdentifier: " + id);
-            return id;
+            mIndeterminateSweep.stop();
+            setPivotX(mCentered ? getWidth()/2f : 0f);
+            mTargetScaleX = 0f;
+            fadeOut();
         }
-    }
+    };
 
     private void updateProgressView(boolean fadeOutAndIn) {
         if (!mProgressList.isEmpty()) {
-            ProgressInfo pi = (ProgressInfo) mProgressList.values().toArray()[mCurrentIndex];
-            float newScaleX = pi.getFraction();
-            if (ModSbdp.DEBUG) ModSbdp.log("updateProgressView: id='" + 
-                    pi.id + "'; newScaleX=" + newScaleX);
-            updateColor();
+            // fade-out of the previous set must not hide the new one
+            removeCallbacks(mFadeOutRunnable);
+        }
+        if (!mProgressList.isEmpty() && mDisplayMode == DisplayMode.SEGMENTED) {
+            showSegments();
+        } else if (!mProgressList.isEmpty()) {
+            final boolean aggregate = (mDisplayMode == DisplayMode.AGGREGATE);
+            ProgressInfo pi = (aggregate ? mProgressList.first() : mProgressList.current());
+            if (aggregate ? mProgressList.isAggregateIndeterminate() : pi.isIndeterminate()) {
+                showIndeterminate(pi);
+                return;
+            }
+            // combined bar doesn't change identity, no need to fade when set changes
+            if (aggregate) fadeOutAndIn = false;
+            if (mIndeterminateSweep.isRunning()) {
+                mIndeterminateSweep.stop();
+                setPivotX(mCentered ? getWidth()/2f : 0f);
+                fadeOutAndIn = true;
+            }
+            float newScaleX = (aggregate ? mProgressList.getAggregateFraction() : pi.getFraction());
+            if (ModSbdp.DEBUG) ModSbdp.log("updateProgressView: id='" +
+                    (aggregate ? "aggregate" : ProgressInfo.keyToString(pi.key)) +
+                    "'; newScaleX=" + newScaleX);
+            if (getVisibility() == View.VISIBLE && !fadeOutAndIn &&
+                    newScaleX == mTargetScaleX) {
+                return;
+            }
+            mTargetScaleX = newScaleX;
             if (getVisibility() != View.VISIBLE) {
                 clearAnimation();
                 fadeIn(newScaleX);
             } else if (fadeOutAndIn) {
                 fadeOutAndIn(newScaleX);
+            } else if (mAnimated && mPredictive && !aggregate) {
+                extrapolateScale(pi, newScaleX);
             } else if (mAnimated) {
                 animateScaleTo(newScaleX);
             } else {
                 setScaleX(newScaleX);
             }
+        } else if (!mDemo.isRunning()) {
+            removeCallbacks(mFadeOutRunnable);
+            postDelayed(mFadeOutRunnable, ANIM_DURATION + 100);
+        }
+    }
+
+    // All downloads side by side, drawn in onDraw; the view itself stays at full scale
+    private void showSegments() {
+        if (ModSbdp.DEBUG) ModSbdp.log("updateProgressView: " + mProgressList.size() +
+                " segments");
+        if (mIndeterminateSweep.isRunning()) {
+            mIndeterminateSweep.stop();
+        }
+        if (mAnimator.isStarted()) {
+            mAnimator.cancel();
+        }
+        mTargetScaleX = 1f;
+        if (getVisibility() != View.VISIBLE) {
+            clearAnimation();
+            fadeIn(1f);
         } else {
-            postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (mAnimator.isStarted()) {
-                        mAnimator.end();
-                    }
-                    fadeOut();
-                }
-            }, ANIM_DURATION + 100);
+            setScaleX(1f);
+        }
+        invalidate();
+    }
+
+    private void getSegmentRect(int position, int count, RectF outRect) {
+        final float width = (getWidth() - mSegmentGapPx * (count - 1)) / count;
+        outRect.left = position * (width + mSegmentGapPx);
+        outRect.right = outRect.left + width;
+        outRect.top = mBarTop;
+        outRect.bottom = mBarTop + mHeightPx;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mDisplayMode == DisplayMode.SEGMENTED && mProgressList.isEmpty() &&
+                !mDemo.isRunning()) {
+            // last segment is gone; full width bar would flash while fading out
+            return;
+        }
+        if (mDisplayMode != DisplayMode.SEGMENTED || mProgressList.isEmpty()) {
+            // whole bar; its length is given by scaleX
+            canvas.drawRect(0, mBarTop, getWidth(), mBarTop + mHeightPx, mSegmentPaint);
+            return;
         }
+
+        final int count = mProgressList.size();
+        int position = 0;
+        for (ProgressInfo pi = mProgressList.first(); pi != null;
+                pi = mProgressList.next(pi), position++) {
+            getSegmentRect(position, count, mSegmentRect);
+            canvas.drawRect(mSegmentRect, mTrackPaint);
+            if (pi.isIndeterminate()) continue;
+            mSegmentRect.right = mSegmentRect.left + mSegmentRect.width() * pi.getFraction();
+            canvas.drawRect(mSegmentRect, mSegmentPaint);
+        }
+    }
+
+    private void showIndeterminate(ProgressInfo pi) {
+        if (ModSbdp.DEBUG) ModSbdp.log("updateProgressView: id='" +
+                ProgressInfo.keyToString(pi.key) + "'; indeterminate");
+        if (mIndeterminateSweep.isRunning()) return;
+
+        if (mAnimator.isStarted()) {
+            mAnimator.cancel();
+        }
+        mTargetScaleX = IndeterminateSweep.SEGMENT_SCALE;
+        setPivotX(0f);
+        if (getVisibility() != View.VISIBLE) {
+            clearAnimation();
+            fadeIn(IndeterminateSweep.SEGMENT_SCALE);
+        }
+        mIndeterminateSweep.start();
     }
 
     private void animateScaleTo(float newScaleX) {
+        animateScaleTo(newScaleX, ANIM_DURATION, false);
+    }
+
+    private void animateScaleTo(float newScaleX, long duration, boolean linear) {
         if (mAnimator.isStarted()) {
             mAnimator.cancel();
         }
         mAnimator.setValues(PropertyValuesHolder.ofFloat("scaleX", getScaleX(), newScaleX));
+        mAnimator.setDuration(duration);
+        mAnimator.setInterpolator(linear ? mLinearInterpolator : mDecelerateInterpolator);
         mAnimator.start();
-        if (ModSbdp.DEBUG) ModSbdp.log("Animating to new scaleX: " + newScaleX);
+        if (ModSbdp.DEBUG) ModSbdp.log("Animating to new scaleX: " + newScaleX +
+                " in " + duration + "ms");
+    }
+
+    // For sources reporting less often than the animation takes, a single linear
+    // animation runs from where the bar currently is to where the download is
+    // expected to be at the next report, based on observed rate. Real data
+    // arriving meanwhile simply starts the next segment from the current scale,
+    // which smoothly corrects any misprediction. No extra callbacks are needed.
+    private void extrapolateScale(ProgressInfo pi, float newScaleX) {
+        final float rate = pi.getRate() / 1000f; // units per ms
+        final long interval = pi.getSampleIntervalMs();
+        if (rate <= 0f || interval <= ANIM_DURATION || pi.max <= 0) {
+            animateScaleTo(newScaleX);
+            return;
+        }
+        final long duration = Math.min(interval, MAX_PREDICTION_TIME);
+        final float predictedScaleX = Math.min(1f,
+                (pi.progress + rate * duration) / (float) pi.max);
+        if (ModSbdp.DEBUG) ModSbdp.log("extrapolateScale: actual=" + newScaleX +
+                "; predicted=" + predictedScaleX);
+        animateScaleTo(predictedScaleX, duration, true);
     }
 
     private void fadeOutAndIn(final float newScaleX) {
@@ -502,90 +495,27 @@ public class StatusbarDownloadProgressView extends View {
             });
     }
 
-    @SuppressWarnings("deprecation")
-    @SuppressLint("NewApi")
-    private ProgressInfo getProgressInfo(String id, Notification n) {
-        if (id == null || n == null) return null;
-
-        if (Build.VERSION.SDK_INT > 18 &&
-            n.extras.containsKey(EXTRA_PROGRESS) &&
-            n.extras.containsKey(EXTRA_PROGRESS_MAX) &&
-            n.extras.getInt(EXTRA_PROGRESS_MAX) > 0) {
-            return new ProgressInfo(id,
-                    n.extras.getInt(EXTRA_PROGRESS),
-                    n.extras.getInt(EXTRA_PROGRESS_MAX));
-        } else if (n.bigContentView != null) {
-            return getProgressInfoFromRemoteView(id, n.bigContentView);
-        } else if (n.contentView != null) {
-            return getProgressInfoFromRemoteView(id, n.contentView);
-        }
-
-        return null;
-    }
-
-    private ProgressInfo getProgressInfoFromRemoteView(String id, RemoteViews view) {
-        int max = -1;
-        int progress = -1;
-
-        try {
-            @SuppressWarnings("unchecked")
-            List<Parcelable> actions = (List<Parcelable>) 
-                XposedHelpers.getObjectField(view, "mActions");
-            if (actions == null) return null;
-
-            for (Parcelable p : actions) {
-                Parcel parcel = Parcel.obtain();
-                p.writeToParcel(parcel, 0);
-                parcel.setDataPosition(0);
-
-                // The tag tells which type of action it is (2 is ReflectionAction)
-                int tag = parcel.readInt();
-                if (tag != 2)  {
-                    parcel.recycle();
-                    continue;
-                }
-
-                parcel.readInt(); // skip View ID
-                String methodName = parcel.readString();
-                if ("setMax".equals(methodName)) {
-                    parcel.readInt(); // skip type value
-                    max = parcel.readInt();
-                    if (ModSbdp.DEBUG) ModSbdp.log("getProgressInfoFromRemoteView: max=" + max);
-                } else if ("setProgress".equals(methodName)) {
-                    parcel.readInt(); // skip type value
-                    progress = parcel.readInt();
-                    if (ModSbdp.DEBUG) ModSbdp.log("getProgressInfoFromRemoteView: progress=" + progress);
-                }
-
-                parcel.recycle();
-            }
-        } catch (Throwable  t) {
-            XposedBridge.log(t);
-        }
-
-        return (max != -1 && progress != -1) ?
-                new ProgressInfo(id, progress, max) : null;
-    }
-
+    // Only moves the bar within the view, status bar layout is never affected
     private void updatePosition() {
         if (mMode == Mode.OFF) return;
-        FrameLayout.LayoutParams lp = (FrameLayout.LayoutParams) getLayoutParams();
-        lp.height = mHeightPx;
-        lp.gravity = mMode == Mode.TOP ? (Gravity.TOP | Gravity.START) :
-            (Gravity.BOTTOM | Gravity.START);
-        lp.setMargins(0, mMode == Mode.TOP ? mEdgeMarginPx : 0, 
-                      0, mMode == Mode.BOTTOM ? mEdgeMarginPx : 0);
-        setLayoutParams(lp);
+        mBarTop = (mMode == Mode.TOP ? mEdgeMarginPx :
+            getHeight() - mEdgeMarginPx - mHeightPx);
+        invalidate();
     }
 
     private class Demo implements Runnable {
         private boolean mDemoRunning;
 
+        boolean isRunning() {
+            return mDemoRunning;
+        }
+
         void start() {
             if (!mProgressList.isEmpty() || mDemoRunning) {
                 return;
             }
             mDemoRunning = true;
+            removeCallbacks(mFadeOutRunnable);
             fadeIn(0f);
             run();
         }
@@ -598,7 +528,6 @@ public class StatusbarDownloadProgressView extends View {
             if (!mDemoRunning) {
                 return;
             }
-            updateColor();
             final View v = StatusbarDownloadProgressView.this;
             float newScale = Math.min(v.getScaleX() + 0.2f, 1f);
             if (mAnimated) {
@@ -609,8 +538,8 @@ public class StatusbarDownloadProgressView extends View {
             if (newScale < 1f) {
                 v.postDelayed(this, ANIM_DURATION + 300);
             } else {
-                maybePlaySound();
-                updateProgressView(false);
+                mModel.maybePlaySound();
+                scheduleProgressViewUpdate(false);
                 mDemoRunning = false;
             }
         }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020 Peter Gregus (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.sbdp;
+
+/**
+ * Maps strings, or their suffixes, to small ordinals. Ordinals are reference
+ * counted: a string is kept only while something acquired it, after which its
+ * ordinal is reused, so the table is as big as the set of strings in use rather
+ * than all strings ever seen. Lookups of already known strings don't allocate;
+ * whole strings use their cached hash code and suffixes are hashed and compared
+ * in place. Not thread safe.
+ */
+class StringInterner {
+    static final int NONE = -1;
+
+    // open addressing table
+    private String[] mStrings;
+    private int[] mOrdinals;
+    private int mSize;
+    // per ordinal
+    private int[] mRefCounts;
+    private int[] mSlots;
+    private int mNextOrdinal;
+    private int[] mFreeOrdinals;
+    private int mFreeCount;
+
+    StringInterner(int initialCapacity) {
+        int tableSize = 1;
+        while (tableSize < initialCapacity * 2) tableSize <<= 1;
+        mStrings = new String[tableSize];
+        mOrdinals = new int[tableSize];
+        mRefCounts = new int[initialCapacity];
+        mSlots = new int[initialCapacity];
+        mFreeOrdinals = new int[initialCapacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns ordinal of string suffix starting at start, or NONE if it isn't held.
+     */
+    int find(String s, int start) {
+        final int slot = findSlot(s, start, hash(s, start));
+        return (mStrings[slot] != null ? mOrdinals[slot] : NONE);
+    }
+
+    /**
+     * Returns ordinal of string suffix starting at start, adding it if needed,
+     * and increments its reference count.
+     */
+    int acquire(String s, int start) {
+        final int hash = hash(s, start);
+        int slot = findSlot(s, start, hash);
+        if (mStrings[slot] != null) {
+            mRefCounts[mOrdinals[slot]]++;
+            return mOrdinals[slot];
+        }
+
+        if ((mSize + 1) * 2 > mStrings.length) {
+            resize(mStrings.length * 2);
+            slot = findSlot(s, start, hash);
+        }
+        final int ordinal = allocateOrdinal();
+        mStrings[slot] = start == 0 ? s : s.substring(start);
+        mOrdinals[slot] = ordinal;
+        mSlots[ordinal] = slot;
+        mRefCounts[ordinal] = 1;
+        mSize++;
+        return ordinal;
+    }
+
+    /**
+     * Decrements reference count of ordinal and drops the string once unused.
+     */
+    void release(int ordinal) {
+        if (ordinal < 0 || ordinal >= mNextOrdinal || mRefCounts[ordinal] <= 0) return;
+        if (--mRefCounts[ordinal] > 0) return;
+
+        removeSlot(mSlots[ordinal]);
+        mFreeOrdinals[mFreeCount++] = ordinal;
+        mSize--;
+    }
+
+    // slot holding the string or empty slot where it belongs
+    private int findSlot(String s, int start, int hash) {
+        final int length = s.length() - start;
+        final int mask = mStrings.length - 1;
+        int i = hash & mask;
+        while (mStrings[i] != null) {
+            String candidate = mStrings[i];
+            if (candidate.length() == length && s.regionMatches(start, candidate, 0, length)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private int allocateOrdinal() {
+        if (mFreeCount > 0) {
+            return mFreeOrdinals[--mFreeCount];
+        }
+        if (mNextOrdinal == mRefCounts.length) {
+            final int capacity = mRefCounts.length * 2;
+            mRefCounts = grow(mRefCounts, capacity);
+            mSlots = grow(mSlots, capacity);
+            mFreeOrdinals = grow(mFreeOrdinals, capacity);
+        }
+        return mNextOrdinal++;
+    }
+
+    // Backward shift deletion keeps probe sequences intact without tombstones
+    private void removeSlot(int slot) {
+        final int mask = mStrings.length - 1;
+        mStrings[slot] = null;
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mStrings[j] == null) break;
+            final int home = hash(mStrings[j], 0) & mask;
+            final boolean movable = (i <= j) ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                mStrings[i] = mStrings[j];
+                mOrdinals[i] = mOrdinals[j];
+                mSlots[mOrdinals[i]] = i;
+                mStrings[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int tableSize) {
+        String[] oldStrings = mStrings;
+        int[] oldOrdinals = mOrdinals;
+        mStrings = new String[tableSize];
+        mOrdinals = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int k = 0; k < oldStrings.length; k++) {
+            if (oldStrings[k] == null) continue;
+            int i = hash(oldStrings[k], 0) & mask;
+            while (mStrings[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mStrings[i] = oldStrings[k];
+            mOrdinals[i] = oldOrdinals[k];
+            mSlots[oldOrdinals[k]] = i;
+        }
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    // Same as hashCode() of the suffix, so whole strings use the cached one
+    private static int hash(String s, int start) {
+        int h;
+        if (start == 0) {
+            h = s.hashCode();
+        } else {
+            h = 0;
+            final int end = s.length();
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+        }
+        return h ^ (h >>> 16);
+    }
+}